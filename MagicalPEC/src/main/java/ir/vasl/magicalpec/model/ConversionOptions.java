@@ -0,0 +1,94 @@
+package ir.vasl.magicalpec.model;
+
+/**
+ * How images are resampled and encoded by MagicalPdfConverter.convertImagesIntoPDF.
+ * <p>
+ * Images are only ever scaled down: to the target dpi at the size they take on the page, and to
+ * the pixel budget, whichever is smaller. The defaults keep photos in color at 200 dpi.
+ */
+public class ConversionOptions {
+
+    public enum ColorModeEnum {
+        /** Kept in color, encoded as jpeg (png when the image has transparency). */
+        COLOR,
+        /** Converted to gray, encoded as jpeg. */
+        GRAYSCALE,
+        /** Thresholded to black and white, encoded as CCITT group 4, for text scans. */
+        BILEVEL
+    }
+
+    public static final float DEFAULT_TARGET_DPI = 200;
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+
+    /** An A4 page at 200 dpi. */
+    public static final long DEFAULT_MAX_PIXELS = 1654L * 2339;
+
+    private float targetDpi = DEFAULT_TARGET_DPI;
+    private int jpegQuality = DEFAULT_JPEG_QUALITY;
+    private ColorModeEnum colorMode = ColorModeEnum.COLOR;
+    private long maxPixels = DEFAULT_MAX_PIXELS;
+    private boolean jpegPassthrough = false;
+
+    public float getTargetDpi() {
+        return targetDpi;
+    }
+
+    /**
+     * @param targetDpi the resolution of the images on the page, 0 for no limit
+     */
+    public ConversionOptions setTargetDpi(float targetDpi) {
+        this.targetDpi = targetDpi;
+        return this;
+    }
+
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * @param jpegQuality the quality of the re-encoded jpegs, 0 to 100
+     */
+    public ConversionOptions setJpegQuality(int jpegQuality) {
+        this.jpegQuality = Math.max(0, Math.min(100, jpegQuality));
+        return this;
+    }
+
+    public ColorModeEnum getColorMode() {
+        return colorMode;
+    }
+
+    public ConversionOptions setColorMode(ColorModeEnum colorMode) {
+        this.colorMode = colorMode;
+        return this;
+    }
+
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+
+    /**
+     * @param maxPixels the largest width x height embedded, 0 for no limit
+     */
+    public ConversionOptions setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+        return this;
+    }
+
+    public boolean isJpegPassthrough() {
+        return jpegPassthrough;
+    }
+
+    /**
+     * Embeds baseline and progressive jpegs byte for byte, keeping their quality and size, and
+     * rotates them upright from their EXIF orientation with the image matrix. The target dpi and
+     * the pixel budget don't apply to them. Mirrored orientations, other images and the gray and
+     * bilevel modes are still decoded.
+     *
+     * @param jpegPassthrough true to embed jpegs as they are, false (default) to resample them
+     */
+    public ConversionOptions setJpegPassthrough(boolean jpegPassthrough) {
+        this.jpegPassthrough = jpegPassthrough;
+        return this;
+    }
+
+}
@@ -3,6 +3,7 @@ package ir.vasl.magicalpec.model;
 
 import com.lowagie.text.ChapterAutoNumber;
 import com.lowagie.text.DocListener;
+import com.lowagie.text.DocWriter;
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.Element;
 import com.lowagie.text.ExceptionConverter;
@@ -123,6 +124,9 @@ public class Document extends com.lowagie.text.Document implements AutoCloseable
     /** This is a chapter number in case ChapterAutoNumber is used. */
     protected int chapternumber = 0;
 
+    /** The writer flushed when a new page starts, or null. */
+    protected DocWriter flushWriter = null;
+
     /**
      * The default language of the document. Can be set to values like "en_US".
      * This language is used in {@link FopGlyphProcessor} to determine which glyphs are to be substituted.
@@ -302,9 +306,37 @@ public class Document extends com.lowagie.text.Document implements AutoCloseable
         for (DocListener listener : listeners) {
             listener.newPage();
         }
+        if (flushWriter != null) {
+            // the completed page is in the body now, hand it over to the file
+            flushWriter.flush();
+        }
         return true;
     }
 
+    /**
+     * Flushes a writer every time a new page starts.
+     * <P>
+     * A PdfWriter already writes an image XObject to its body when the image is added, and the
+     * content stream of a page when the next page starts. The flush only hands those bytes on to
+     * the output stream, so they don't wait in its buffers. It doesn't change what the writer
+     * keeps of a page: its cross-reference entry and page reference, a few bytes per page.
+     *
+     * @param writer
+     *            the writer listening to this document, or <CODE>null</CODE> for none
+     */
+    public void setFlushOnNewPage(DocWriter writer) {
+        this.flushWriter = writer;
+    }
+
+    /**
+     * Tells whether a writer is flushed when a new page starts.
+     *
+     * @return <CODE>true</CODE> if completed pages are flushed right away
+     */
+    public boolean isFlushOnNewPage() {
+        return flushWriter != null;
+    }
+
     /**
      * Changes the header of this document.
      *
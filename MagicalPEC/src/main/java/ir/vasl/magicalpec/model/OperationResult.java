@@ -0,0 +1,120 @@
+package ir.vasl.magicalpec.model;
+
+/**
+ * What one PDF operation cost: wall time per phase, bytes and pages, and its failure cause if
+ * it failed. Times are in nanoseconds, a phase that did not run takes 0.
+ */
+public class OperationResult {
+
+    /** The file path or Uri string of the document. */
+    private final String document;
+
+    /** Opening the reader: header, xref and trailer. */
+    private final long readNanos;
+
+    /** Locating updated stamps and indexing the pages that reference removed layers. */
+    private final long parseNanos;
+
+    /** Rewriting the content streams and resources in OCGRemover. */
+    private final long removalNanos;
+
+    /** Stamping the new objects and writing the document. */
+    private final long writeNanos;
+
+    private final long totalNanos;
+
+    /** The length of the document the reader was opened on, -1 if unknown. */
+    private final long bytesRead;
+
+    /** The bytes that reached the document (only the update section for an incremental save). */
+    private final long bytesWritten;
+
+    private final int pagesTouched;
+
+    private final Exception cause;
+
+    public OperationResult(String document, long readNanos, long parseNanos, long removalNanos, long writeNanos,
+                           long totalNanos, long bytesRead, long bytesWritten, int pagesTouched, Exception cause) {
+        this.document = document;
+        this.readNanos = readNanos;
+        this.parseNanos = parseNanos;
+        this.removalNanos = removalNanos;
+        this.writeNanos = writeNanos;
+        this.totalNanos = totalNanos;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.pagesTouched = pagesTouched;
+        this.cause = cause;
+    }
+
+    /**
+     * A failed operation that did not reach the document.
+     */
+    public static OperationResult failed(String document, Exception cause) {
+        return new OperationResult(document, 0, 0, 0, 0, 0, -1, 0, 0, cause);
+    }
+
+    public String getDocument() {
+        return document;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getRemovalNanos() {
+        return removalNanos;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getPagesTouched() {
+        return pagesTouched;
+    }
+
+    /**
+     * @return the exception that made the operation fail, or null if it succeeded
+     */
+    public Exception getCause() {
+        return cause;
+    }
+
+    public boolean isSuccessful() {
+        return cause == null;
+    }
+
+    @Override
+    public String toString() {
+        return "OperationResult{" +
+                "document='" + document + '\'' +
+                ", readNanos=" + readNanos +
+                ", parseNanos=" + parseNanos +
+                ", removalNanos=" + removalNanos +
+                ", writeNanos=" + writeNanos +
+                ", totalNanos=" + totalNanos +
+                ", bytesRead=" + bytesRead +
+                ", bytesWritten=" + bytesWritten +
+                ", pagesTouched=" + pagesTouched +
+                ", cause=" + cause +
+                '}';
+    }
+
+}
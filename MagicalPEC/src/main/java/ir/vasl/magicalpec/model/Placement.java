@@ -0,0 +1,55 @@
+package ir.vasl.magicalpec.model;
+
+import android.graphics.PointF;
+
+/**
+ * Where one stamp of a bulk add goes, see MagicalPdfCore.addOCGs.
+ */
+public class Placement {
+
+    private final PointF pointF;
+    private final int currPage;
+    private final String referenceHash;
+    private final float OCGWidth;
+    private final float OCGHeight;
+
+    /**
+     * A stamp with the default size.
+     *
+     * @param pointF        the lower left corner of the stamp
+     * @param currPage      the page index (starting from 0)
+     * @param referenceHash the name of the layer of the stamp
+     */
+    public Placement(PointF pointF, int currPage, String referenceHash) {
+        this(pointF, currPage, referenceHash, 0, 0);
+    }
+
+    public Placement(PointF pointF, int currPage, String referenceHash, float OCGWidth, float OCGHeight) {
+        this.pointF = pointF;
+        this.currPage = currPage;
+        this.referenceHash = referenceHash;
+        this.OCGWidth = OCGWidth;
+        this.OCGHeight = OCGHeight;
+    }
+
+    public PointF getPointF() {
+        return pointF;
+    }
+
+    public int getCurrPage() {
+        return currPage;
+    }
+
+    public String getReferenceHash() {
+        return referenceHash;
+    }
+
+    public float getOCGWidth() {
+        return OCGWidth;
+    }
+
+    public float getOCGHeight() {
+        return OCGHeight;
+    }
+
+}
@@ -0,0 +1,91 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+/**
+ * An OutputStream that writes a new version of a document to a temporary file and only
+ * publishes it when it is closed.
+ * <p>
+ * On close the temporary file is fsynced before it is handed to the {@link Publisher} (a rename
+ * over the document, or a copy into a content Uri), so a crash or an exception while the stamper
+ * writes leaves the original document untouched. A stream that is never closed is dropped with
+ * {@link #discard()}.
+ * <p>
+ * Only a rename is atomic. A copy into a Uri truncates the document first, so a copy that fails
+ * half way leaves it incomplete; the temporary file is then kept and named in the exception.
+ */
+class AtomicOutputStream extends FilterOutputStream implements PdfTarget.Pending {
+
+    /**
+     * Replaces the document with the complete, synced temporary file. If it throws, the
+     * temporary file is kept.
+     */
+    interface Publisher {
+        void publish(File temp) throws IOException;
+    }
+
+    private final File temp;
+    private final Publisher publisher;
+    private boolean closed = false;
+
+    /**
+     * @param temp      the temporary file, preferably a sibling of the document
+     * @param publisher replaces the document with the temporary file
+     */
+    AtomicOutputStream(File temp, Publisher publisher) throws IOException {
+        super(new FileOutputStream(temp));
+        this.temp = temp;
+        this.publisher = publisher;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        FileOutputStream fileOutputStream = (FileOutputStream) out;
+        try {
+            try {
+                fileOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+        } catch (IOException e) {
+            // the document is untouched, the incomplete temporary file is useless
+            temp.delete();
+            throw e;
+        }
+        try {
+            publisher.publish(temp);
+        } catch (IOException e) {
+            // the publisher may have changed the document already, then the temporary file is its only complete copy
+            throw new IOException("Cannot publish the document, its new version is kept in " + temp + ": " + e.getMessage(), e);
+        }
+        temp.delete();
+    }
+
+    /**
+     * Drops the temporary file without touching the document, if the stream is not closed yet.
+     */
+    @Override
+    public void discard() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        temp.delete();
+    }
+
+}
@@ -0,0 +1,16 @@
+package ir.vasl.magicalpec.utils.Core;
+
+/**
+ * Receives the progress of a multi-image conversion, see
+ * {@link MagicalPdfConverter#convertImagesIntoPDF}. It is called on the converting thread after
+ * each page is written, so it should only hand the numbers over.
+ */
+public interface ConversionListener {
+
+    /**
+     * @param page      the number of pages written so far
+     * @param pageCount the number of pages of the document
+     */
+    void onPageConverted(int page, int pageCount);
+
+}
@@ -0,0 +1,124 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Image;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ir.vasl.magicalpec.utils.PublicFunction;
+
+/**
+ * Keeps OCG covers so the stamp hot path doesn't hash, encode or decode the same cover twice.
+ * <p>
+ * Covers can be registered once and referred to by the returned id (the content hash of their
+ * bytes) afterwards, see {@link MagicalPdfCore#registerCover(byte[])}. Registered covers stay
+ * until they are unregistered. Decoded covers are kept in an LRU cache bounded by their estimated
+ * size, keyed by the same content hash, whether they were registered or not.
+ */
+public class CoverCache {
+
+    private static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private static CoverCache instance;
+
+    private final Map<String, byte[]> registered = new HashMap<>();
+    private final Map<String, DecodedCover> decoded = new LinkedHashMap<>(16, 0.75f, true);
+    private long decodedBytes = 0;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    public static synchronized CoverCache getInstance() {
+        if (instance == null)
+            instance = new CoverCache();
+        return instance;
+    }
+
+    /**
+     * Registers a cover.
+     *
+     * @param cover the encoded cover image
+     * @return the id of the cover
+     */
+    public synchronized String register(byte[] cover) {
+        String id = PublicFunction.getContentHash(cover);
+        registered.put(id, cover);
+        return id;
+    }
+
+    public synchronized void unregister(String id) {
+        registered.remove(id);
+    }
+
+    /**
+     * @return the bytes of a registered cover, or null if the id is unknown
+     */
+    public synchronized byte[] getCover(String id) {
+        return registered.get(id);
+    }
+
+    /**
+     * Sets the bound of the decoded covers cache.
+     *
+     * @param maxBytes the estimated size bound, 8 MB by default
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized void clear() {
+        decoded.clear();
+        decodedBytes = 0;
+    }
+
+    /**
+     * Gets a decoded cover, decoding it on a miss.
+     *
+     * @param id    the content hash of the cover
+     * @param cover the encoded cover image
+     * @return a copy of the decoded cover that the caller may position, scale and mask
+     */
+    Image getImage(String id, byte[] cover) throws IOException, BadElementException {
+        DecodedCover entry;
+        synchronized (this) {
+            entry = decoded.get(id);
+        }
+        if (entry == null) {
+            // decoded outside the lock, two threads may decode the same cover once each
+            Image image = Image.getInstance(cover);
+            byte[] raw = image.getRawData();
+            entry = new DecodedCover(image, cover.length + (raw == null ? 0 : raw.length));
+            synchronized (this) {
+                DecodedCover previous = decoded.put(id, entry);
+                if (previous != null)
+                    decodedBytes -= previous.bytes;
+                decodedBytes += entry.bytes;
+                trim();
+            }
+        }
+        return Image.getInstance(entry.image);
+    }
+
+    private void trim() {
+        Iterator<DecodedCover> iterator = decoded.values().iterator();
+        while (decodedBytes > maxBytes && iterator.hasNext()) {
+            decodedBytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static class DecodedCover {
+
+        final Image image;
+        final long bytes;
+
+        DecodedCover(Image image, long bytes) {
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+}
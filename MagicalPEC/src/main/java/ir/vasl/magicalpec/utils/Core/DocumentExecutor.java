@@ -0,0 +1,220 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs document operations in the background, one at a time per document and in parallel
+ * across documents.
+ * <p>
+ * Operations on the same document run in submission order, each one only after the previous
+ * has finished, so two edits never read and write the same file at once. Documents are told
+ * apart by a key; use the {@code documentKey} methods so a file reached through its path and
+ * through a Uri gets a single queue. The threads come from a bounded pool, either owned by this
+ * executor or injected. Pending operations can be cancelled, and running ones are interrupted.
+ */
+public class DocumentExecutor {
+
+    private static final int DEFAULT_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()));
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    private final Object lock = new Object();
+    private final Map<String, ArrayDeque<Operation>> queues = new HashMap<>();
+    private final Set<Operation> operations = new HashSet<>();
+    private boolean shutdown = false;
+
+    /**
+     * Creates an executor with its own pool of at most two threads.
+     */
+    public DocumentExecutor() {
+        this(Executors.newFixedThreadPool(DEFAULT_THREADS), true);
+    }
+
+    /**
+     * Creates an executor that runs operations on an injected pool. The pool is not shut down by
+     * {@link #shutdown()}.
+     *
+     * @param executor the pool running the operations
+     */
+    public DocumentExecutor(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private DocumentExecutor(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * The identity of a document file: its canonical path.
+     *
+     * @param filePath the path of the document
+     */
+    public static String documentKey(String filePath) {
+        if (filePath == null)
+            return null;
+        File file = new File(filePath);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * The identity of a document Uri without opening it: the canonical path of a file Uri, else
+     * the Uri string. Safe on the main thread.
+     *
+     * @param uri the document
+     */
+    public static String documentKey(Uri uri) {
+        if (uri == null)
+            return null;
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null)
+            return documentKey(uri.getPath());
+        return uri.toString();
+    }
+
+    /**
+     * The identity of a document Uri: the canonical path of the file behind it when there is one,
+     * resolved through the /proc entry of an opened descriptor, else the Uri string.
+     * <p>
+     * It opens the document through its provider, so don't call it on the main thread.
+     *
+     * @param context a context to resolve the uri
+     * @param uri     the document
+     */
+    public static String documentKey(Context context, Uri uri) {
+        if (uri == null)
+            return null;
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null)
+            return documentKey(uri.getPath());
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (descriptor != null) {
+                String path = new File("/proc/self/fd/" + descriptor.getFd()).getCanonicalPath();
+                // an unnamed pipe or socket, or a file the link can't be followed to
+                if (path.startsWith("/") && !path.startsWith("/proc/") && new File(path).exists())
+                    return path;
+            }
+        } catch (Exception ignored) {
+        }
+        return uri.toString();
+    }
+
+    /**
+     * Queues an operation on a document.
+     *
+     * @param document  the key of the document, see {@link #documentKey(String)}
+     * @param operation the operation
+     * @return a future that cancels the operation
+     * @throws RejectedExecutionException if the executor is shut down
+     */
+    public Future<?> submit(String document, Runnable operation) {
+        Operation task = new Operation(document, operation);
+        synchronized (lock) {
+            if (shutdown)
+                throw new RejectedExecutionException("DocumentExecutor is shut down");
+            operations.add(task);
+            ArrayDeque<Operation> queue = queues.get(document);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(document, queue);
+                queue.add(task);
+                schedule(task);
+            } else {
+                queue.add(task);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Cancels the pending operations and interrupts the running ones.
+     */
+    public void cancelAll() {
+        List<Operation> cancelled;
+        synchronized (lock) {
+            cancelled = new ArrayList<>(operations);
+        }
+        for (Operation operation : cancelled)
+            operation.cancel(true);
+    }
+
+    /**
+     * Cancels all operations and refuses new ones. An owned pool is shut down too.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+        }
+        cancelAll();
+        if (ownsExecutor)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Runs the head of a document queue on the pool, then the next one.
+     */
+    private void schedule(final Operation operation) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    operation.run();
+                } finally {
+                    next(operation.document);
+                }
+            }
+        });
+    }
+
+    private void next(String document) {
+        synchronized (lock) {
+            ArrayDeque<Operation> queue = queues.get(document);
+            queue.poll();
+            Operation next = queue.peek();
+            if (next == null) {
+                queues.remove(document);
+            } else if (!shutdown) {
+                schedule(next);
+            }
+        }
+    }
+
+    private class Operation extends FutureTask<Void> {
+
+        final String document;
+
+        Operation(String document, Runnable runnable) {
+            super(runnable, null);
+            this.document = document;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (lock) {
+                operations.remove(this);
+            }
+        }
+    }
+
+}
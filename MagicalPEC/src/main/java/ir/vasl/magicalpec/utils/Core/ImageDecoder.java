@@ -0,0 +1,363 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.codec.CCITTG4Encoder;
+
+import java.io.ByteArrayOutputStream;
+
+import ir.vasl.magicalpec.model.ConversionOptions;
+
+/**
+ * Turns an encoded image into a ready-to-embed Image: upright, resampled and encoded as the
+ * {@link ConversionOptions} ask.
+ * <p>
+ * An image is fitted to the page, and its pixel size is bounded by the target dpi at that page
+ * size and by the pixel budget. Color jpegs and pngs that already fit and need no rotation are
+ * embedded as they are, without decoding. The others, and every other format, are decoded with the smallest sample size that keeps
+ * them above the bound, scaled down to it, rotated upright from their EXIF orientation, and
+ * encoded again as a color or gray jpeg or a CCITT group 4 bilevel image.
+ * In passthrough mode baseline and progressive jpegs are never decoded: their bytes are embedded
+ * as a DCTDecode stream and turned upright by the rotation of the image matrix.
+ * Decoders hold no state, so one decoder is shared by the pipeline workers.
+ */
+class ImageDecoder {
+
+    /** Luminance below which a bilevel pixel is black. */
+    private static final int BILEVEL_THRESHOLD = 128;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final ConversionOptions options;
+    private final float fitWidth;
+    private final float fitHeight;
+
+    /**
+     * @param options   how images are resampled and encoded
+     * @param fitWidth  the width the image is fitted in on the page, in points
+     * @param fitHeight the height the image is fitted in on the page, in points
+     */
+    ImageDecoder(ConversionOptions options, float fitWidth, float fitHeight) {
+        this.options = options;
+        this.fitWidth = fitWidth;
+        this.fitHeight = fitHeight;
+    }
+
+    Image decode(byte[] bytes) throws Exception {
+        ConversionOptions.ColorModeEnum colorMode = options.getColorMode();
+        if (options.isJpegPassthrough() && colorMode == ConversionOptions.ColorModeEnum.COLOR && isDctJpeg(bytes)) {
+            Image image = passthrough(bytes, getExifOrientation(bytes));
+            if (image != null)
+                return image;
+        }
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            // not something the platform decodes, let OpenPdf try
+            return Image.getInstance(bytes);
+
+        int orientation = getExifOrientation(bytes);
+        long pixels = (long) bounds.outWidth * bounds.outHeight;
+        // orientations 5 to 8 turn the image a quarter
+        boolean quarterTurn = orientation >= 5;
+        double scale = getScale(quarterTurn ? bounds.outHeight : bounds.outWidth,
+                quarterTurn ? bounds.outWidth : bounds.outHeight);
+        if (scale >= 1 && orientation <= 1 && colorMode == ConversionOptions.ColorModeEnum.COLOR && isEmbeddable(bytes))
+            return Image.getInstance(bytes);
+
+        long targetPixels = Math.max(1, (long) (pixels * Math.min(1, scale * scale)));
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = 1;
+        while (pixels / ((long) decodeOptions.inSampleSize * decodeOptions.inSampleSize * 4) >= targetPixels)
+            decodeOptions.inSampleSize *= 2;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, decodeOptions);
+        if (bitmap == null)
+            return Image.getInstance(bytes);
+
+        try {
+            Matrix matrix = new Matrix();
+            long decodedPixels = (long) bitmap.getWidth() * bitmap.getHeight();
+            if (decodedPixels > targetPixels) {
+                float bitmapScale = (float) Math.sqrt((double) targetPixels / decodedPixels);
+                matrix.postScale(bitmapScale, bitmapScale);
+            }
+            applyOrientation(matrix, orientation);
+            if (!matrix.isIdentity()) {
+                Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (transformed != bitmap) {
+                    bitmap.recycle();
+                    bitmap = transformed;
+                }
+            }
+
+            switch (colorMode) {
+                case BILEVEL:
+                    return encodeBilevel(bitmap);
+                case GRAYSCALE:
+                    Bitmap gray = toGray(bitmap);
+                    bitmap.recycle();
+                    bitmap = gray;
+                    return encode(bitmap, Bitmap.CompressFormat.JPEG);
+                default:
+                    // transparent images would turn black as jpeg
+                    return encode(bitmap, bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return the factor that brings an image of this upright size to the target dpi at its size on
+     * the page and within the pixel budget, more than 1 if it already is
+     */
+    double getScale(int width, int height) {
+        double scale = Double.MAX_VALUE;
+        float targetDpi = options.getTargetDpi();
+        if (targetDpi > 0) {
+            // the points per pixel of the image fitted in the page, in pixels per pixel at the target dpi
+            double pointsPerPixel = Math.min(fitWidth / width, fitHeight / height);
+            scale = pointsPerPixel / 72 * targetDpi;
+        }
+        long maxPixels = options.getMaxPixels();
+        if (maxPixels > 0)
+            scale = Math.min(scale, Math.sqrt((double) maxPixels / ((long) width * height)));
+        return scale;
+    }
+
+    private Image encode(Bitmap bitmap, Bitmap.CompressFormat format) throws Exception {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        bitmap.compress(format, options.getJpegQuality(), encoded);
+        return Image.getInstance(encoded.toByteArray());
+    }
+
+    /**
+     * Draws a bitmap in gray over white, so transparent areas stay white as jpeg.
+     */
+    private static Bitmap toGray(Bitmap bitmap) {
+        Bitmap gray = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        gray.eraseColor(Color.WHITE);
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+        new Canvas(gray).drawBitmap(bitmap, 0, 0, paint);
+        gray.setHasAlpha(false);
+        return gray;
+    }
+
+    /**
+     * Thresholds a bitmap to one bit per pixel, black set, and encodes it as CCITT group 4.
+     * Transparent pixels are white.
+     */
+    private static Image encodeBilevel(Bitmap bitmap) throws Exception {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int rowBytes = (width + 7) / 8;
+        byte[] bits = new byte[rowBytes * height];
+        // a row at a time, a whole int[] of a large scan would double its memory
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int color = row[x];
+                if (Color.alpha(color) < 128)
+                    continue;
+                int luminance = (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000;
+                if (luminance < BILEVEL_THRESHOLD)
+                    bits[y * rowBytes + x / 8] |= (byte) (0x80 >> (x % 8));
+            }
+        }
+        return createBilevel(bits, width, height);
+    }
+
+    /**
+     * Encodes packed bilevel rows as a CCITT group 4 image.
+     *
+     * @param bits one bit per pixel, rows padded to a byte, the most significant bit first, 1 for black
+     */
+    static Image createBilevel(byte[] bits, int width, int height) throws Exception {
+        byte[] g4 = CCITTG4Encoder.compress(bits, width, height);
+        // the encoder codes set bits as black runs, which the default /BlackIs1 false decodes to black
+        return Image.getInstance(width, height, false, Image.CCITTG4, 0, g4);
+    }
+
+    /**
+     * Embeds a jpeg without decoding it, rotated upright by the image matrix.
+     *
+     * @return the image, or null for a mirrored orientation that a rotation can't undo
+     */
+    static Image passthrough(byte[] bytes, int orientation) throws Exception {
+        float degrees;
+        switch (orientation) {
+            case 0:
+            case 1:
+                degrees = 0;
+                break;
+            case 3:
+                degrees = 180;
+                break;
+            case 6:
+                // EXIF turns clockwise, the image matrix counterclockwise
+                degrees = 270;
+                break;
+            case 8:
+                degrees = 90;
+                break;
+            default:
+                return null;
+        }
+        Image image = Image.getInstance(bytes);
+        if (image.type() != Image.JPEG)
+            return null;
+        image.setRotationDegrees(degrees);
+        return image;
+    }
+
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case 2:
+                matrix.postScale(-1, 1);
+                break;
+            case 3:
+                matrix.postRotate(180);
+                break;
+            case 4:
+                matrix.postScale(1, -1);
+                break;
+            case 5:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case 6:
+                matrix.postRotate(90);
+                break;
+            case 7:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            case 8:
+                matrix.postRotate(270);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Tells whether OpenPdf embeds an image without the platform decoding it: a DCTDecode jpeg or a
+     * png. WebP, HEIC and the other formats the platform reads are decoded and encoded again.
+     */
+    static boolean isEmbeddable(byte[] bytes) {
+        return isDctJpeg(bytes) || isPng(bytes);
+    }
+
+    private static boolean isPng(byte[] bytes) {
+        if (bytes.length < PNG_SIGNATURE.length)
+            return false;
+        for (int i = 0; i < PNG_SIGNATURE.length; i++)
+            if (bytes[i] != PNG_SIGNATURE[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Tells whether an image is a jpeg a pdf reader decodes as a DCTDecode stream, that is a
+     * baseline, extended or progressive huffman jpeg. Lossless and arithmetic coded ones are not.
+     */
+    static boolean isDctJpeg(byte[] bytes) {
+        int frame = findSegment(bytes, 0xC0, 0xCF);
+        return frame == 0xC0 || frame == 0xC1 || frame == 0xC2;
+    }
+
+    /**
+     * Reads the EXIF orientation of a jpeg, from the IFD0 of its APP1 segment.
+     *
+     * @return the orientation, 1 to 8, or 0 if the image is not a jpeg or has none
+     */
+    static int getExifOrientation(byte[] bytes) {
+        int offset = findSegmentOffset(bytes, 0xE1, 0xE1, true);
+        if (offset < 0)
+            return 0;
+        int length = readShort(bytes, offset + 2, false);
+        return readTiffOrientation(bytes, offset + 10, offset + 2 + length);
+    }
+
+    /**
+     * @return the first marker of a jpeg header segment within a range, or 0 if there is none
+     */
+    private static int findSegment(byte[] bytes, int firstMarker, int lastMarker) {
+        int offset = findSegmentOffset(bytes, firstMarker, lastMarker, false);
+        return offset < 0 ? 0 : bytes[offset + 1] & 0xFF;
+    }
+
+    /**
+     * Walks the header segments of a jpeg, up to the image data.
+     *
+     * @param exif true to only accept an APP1 segment holding EXIF data
+     * @return the offset of the first segment with a marker in the range, or -1
+     */
+    private static int findSegmentOffset(byte[] bytes, int firstMarker, int lastMarker, boolean exif) {
+        if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != 0xD8)
+            return -1;
+        int offset = 2;
+        while (offset + 4 <= bytes.length && (bytes[offset] & 0xFF) == 0xFF) {
+            int marker = bytes[offset + 1] & 0xFF;
+            // the image data starts at SOS, no more metadata after it
+            if (marker == 0xDA || marker == 0xD9)
+                return -1;
+            int length = readShort(bytes, offset + 2, false);
+            // DHT, JPG and DAC share the SOF range without being frames
+            boolean frameRange = marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (marker >= firstMarker && marker <= lastMarker && frameRange && offset + 2 + length <= bytes.length
+                    && (!exif || (length >= 8 && bytes[offset + 4] == 'E' && bytes[offset + 5] == 'x'
+                    && bytes[offset + 6] == 'i' && bytes[offset + 7] == 'f')))
+                return offset;
+            offset += 2 + length;
+        }
+        return -1;
+    }
+
+    private static int readTiffOrientation(byte[] bytes, int tiff, int end) {
+        if (tiff + 8 > end)
+            return 0;
+        boolean littleEndian = bytes[tiff] == 'I' && bytes[tiff + 1] == 'I';
+        int ifd = tiff + readInt(bytes, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > end)
+            return 0;
+        int entries = readShort(bytes, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end)
+                return 0;
+            if (readShort(bytes, entry, littleEndian) == 0x0112) {
+                int orientation = readShort(bytes, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : 0;
+            }
+        }
+        return 0;
+    }
+
+    private static int readShort(byte[] bytes, int offset, boolean littleEndian) {
+        int first = bytes[offset] & 0xFF;
+        int second = bytes[offset + 1] & 0xFF;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private static int readInt(byte[] bytes, int offset, boolean littleEndian) {
+        int high = readShort(bytes, littleEndian ? offset + 2 : offset, littleEndian);
+        int low = readShort(bytes, littleEndian ? offset : offset + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+}
@@ -0,0 +1,89 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.Image;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads images on a pool of workers and hands them, in page order, to a single writer.
+ * <p>
+ * Workers read, decode, rotate and downscale the images in parallel while the calling thread
+ * embeds them, since a PdfWriter must be fed sequentially. At most {@code window} images are
+ * loaded ahead of the writer: a new one is only started when the writer takes the next page,
+ * so a slow writer holds the workers back and memory stays bounded whatever the page count.
+ */
+class ImagePipeline {
+
+    interface Loader {
+        Image load(int index) throws Exception;
+    }
+
+    interface Writer {
+        void write(int index, Image image) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final int window;
+
+    /**
+     * @param executor the workers
+     * @param window   the number of images loaded ahead of the writer
+     */
+    ImagePipeline(ExecutorService executor, int window) {
+        this.executor = executor;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Runs the pipeline on the calling thread, which is the writer.
+     *
+     * @param count  the number of images
+     * @param loader loads an image, called on the workers
+     * @param writer embeds an image, called on this thread in index order
+     * @throws Exception the first failure of a loader or of the writer; the other loads are cancelled
+     */
+    void run(int count, Loader loader, Writer writer) throws Exception {
+        // the reorder buffer, futures in page order whatever order the workers finish in
+        ArrayDeque<Future<Image>> loading = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < count && loading.size() < window)
+                loading.add(submit(loader, next++));
+
+            for (int index = 0; index < count; index++) {
+                Image image = take(loading.poll());
+                if (next < count)
+                    loading.add(submit(loader, next++));
+                writer.write(index, image);
+            }
+        } finally {
+            for (Future<Image> future : loading)
+                future.cancel(true);
+        }
+    }
+
+    private Future<Image> submit(final Loader loader, final int index) {
+        return executor.submit(new Callable<Image>() {
+            @Override
+            public Image call() throws Exception {
+                return loader.load(index);
+            }
+        });
+    }
+
+    private static Image take(Future<Image> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that drops a fixed number of leading bytes.
+ * <p>
+ * A PdfStamper in append mode always starts by copying the original document to its output
+ * before writing the incremental update section. When the output is the original file opened
+ * in append mode, those bytes are already on disk, so we skip them and only the new objects,
+ * xref and trailer reach the file. The stamper still reads the whole original document to copy
+ * it, this only saves the writes.
+ */
+class IncrementalOutputStream extends FilterOutputStream {
+
+    private long skip;
+
+    /**
+     * @param out  the stream receiving the incremental update section
+     * @param skip the number of leading bytes to drop (the length of the original document)
+     */
+    IncrementalOutputStream(OutputStream out, long skip) {
+        super(out);
+        this.skip = skip;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (skip > 0) {
+            skip--;
+            return;
+        }
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (skip > 0) {
+            int n = (int) Math.min(skip, len);
+            skip -= n;
+            off += n;
+            len -= n;
+        }
+        if (len > 0)
+            out.write(b, off, len);
+    }
+
+}
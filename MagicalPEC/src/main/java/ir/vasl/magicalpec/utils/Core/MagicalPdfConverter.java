@@ -10,9 +10,20 @@ import com.lowagie.text.pdf.PdfICCBased;
 import com.lowagie.text.pdf.PdfTemplate;
 import com.lowagie.text.pdf.PdfWriter;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import ir.vasl.magicalpec.model.ConversionOptions;
 import ir.vasl.magicalpec.model.Document;
 import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
 import ir.vasl.magicalpec.utils.PathUtil;
@@ -21,6 +32,14 @@ public class MagicalPdfConverter {
 
     private static MagicalPdfConverter magicalPdfConverter = null;
 
+    /**
+     * A decoded image is held by each worker, so the own pool stays small whatever the core count.
+     */
+    private static final int DEFAULT_DECODE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private volatile ExecutorService decodeExecutor = null;
+    private volatile int decodeThreads = 0;
+
     public static MagicalPdfConverter getInstance() {
         if (magicalPdfConverter == null) {
             magicalPdfConverter = new MagicalPdfConverter();
@@ -28,6 +47,34 @@ public class MagicalPdfConverter {
         return magicalPdfConverter;
     }
 
+    public ExecutorService getDecodeExecutor() {
+        return decodeExecutor;
+    }
+
+    /**
+     * Sets the executor that reads, decodes and downscales images in parallel during multi-image
+     * conversions, for example a pool sized to the cores of the device. The number of images
+     * loaded ahead of the writer follows the size of a ThreadPoolExecutor, and the core count for
+     * other executors, see {@link #setDecodeExecutor(ExecutorService, int)}.
+     *
+     * @param decodeExecutor the executor, or null (default) for a pool of at most four threads per conversion
+     */
+    public void setDecodeExecutor(ExecutorService decodeExecutor) {
+        setDecodeExecutor(decodeExecutor, 0);
+    }
+
+    /**
+     * Sets the executor that reads, decodes and downscales images, with the number of threads it
+     * runs them on. Two images per thread are loaded ahead of the writer.
+     *
+     * @param decodeExecutor the executor, or null (default) for a pool of at most four threads per conversion
+     * @param threads        the threads of the executor, 0 to size from the executor
+     */
+    public void setDecodeExecutor(ExecutorService decodeExecutor, int threads) {
+        this.decodeExecutor = decodeExecutor;
+        this.decodeThreads = threads;
+    }
+
     public String convertImageIntoPDF(Context context, String savePdfDestination, Uri imageUri) throws MagicalException {
 
         if (savePdfDestination == null || savePdfDestination.isEmpty())
@@ -102,4 +149,180 @@ public class MagicalPdfConverter {
             throw new MagicalException(e.getMessage());
         }
     }
+
+    public String convertImagesIntoPDF(Context context, String savePdfDestination, List<Uri> imageUris) throws MagicalException {
+        return convertImagesIntoPDF(context, savePdfDestination, imageUris, new ConversionOptions(), null);
+    }
+
+    public String convertImagesIntoPDF(Context context, String savePdfDestination, List<Uri> imageUris, ConversionListener listener) throws MagicalException {
+        return convertImagesIntoPDF(context, savePdfDestination, imageUris, new ConversionOptions(), listener);
+    }
+
+    /**
+     * Converts images into one pdf, a page per image, in the order of the list.
+     * <p>
+     * Images are read, rotated upright, resampled to the target dpi and encoded as the options
+     * ask by the decode workers, see {@link ConversionOptions}. They are added in page order to
+     * a single PdfWriter, which writes each image as soon as it is added and each page as soon
+     * as it completes, then flushed on every new page. Only a few images are loaded ahead of the
+     * writer, so peak memory does not grow with the page count. Each image is scaled to fit its
+     * page. A failed conversion deletes the partial file.
+     *
+     * @param savePdfDestination the pdf file to write
+     * @param imageUris          the images, one per page
+     * @param options            how images are resampled and encoded
+     * @param listener           notified after each page, may be null
+     * @return the pdf file
+     */
+    public String convertImagesIntoPDF(final Context context, String savePdfDestination, final List<Uri> imageUris, ConversionOptions options, ConversionListener listener) throws MagicalException {
+
+        if (savePdfDestination == null || savePdfDestination.isEmpty())
+            throw new MagicalException("Save PDF file distance is not valid");
+
+        if (imageUris == null || imageUris.isEmpty())
+            throw new MagicalException("Image URI list is not valid");
+
+        if (options == null)
+            throw new MagicalException("Conversion options are not valid");
+
+        for (Uri imageUri : imageUris)
+            if (imageUri == null)
+                throw new MagicalException("Image URI is not valid");
+
+        return convertImages(savePdfDestination, imageUris.size(), new ImageSource() {
+            @Override
+            public byte[] read(int index) throws Exception {
+                return readImage(context, imageUris.get(index));
+            }
+        }, options, listener);
+    }
+
+    /**
+     * Reads the encoded image of a page, called on the decode workers.
+     */
+    interface ImageSource {
+        byte[] read(int index) throws Exception;
+    }
+
+    /**
+     * Converts images into one pdf, see {@link #convertImagesIntoPDF(Context, String, List, ConversionOptions, ConversionListener)}.
+     *
+     * @param pageCount the number of images
+     * @param source    reads the image of each page
+     */
+    String convertImages(String savePdfDestination, final int pageCount, final ImageSource source, ConversionOptions options, final ConversionListener listener) throws MagicalException {
+
+        File file = new File(savePdfDestination);
+        if (!file.exists()) {
+            String parent = file.getParent();
+            if (parent != null)
+                new File(parent).mkdirs();
+        }
+
+        ExecutorService executor = decodeExecutor;
+        ExecutorService ownExecutor = null;
+        int threads = decodeThreads > 0 ? decodeThreads : threads(executor);
+        if (executor == null) {
+            ownExecutor = Executors.newFixedThreadPool(DEFAULT_DECODE_THREADS);
+            executor = ownExecutor;
+            threads = DEFAULT_DECODE_THREADS;
+        }
+
+        final Document document = new Document();
+        final ImageDecoder decoder = new ImageDecoder(options,
+                document.getPageSize().getWidth() - document.leftMargin() - document.rightMargin(),
+                document.getPageSize().getHeight() - document.topMargin() - document.bottomMargin());
+        OutputStream outputStream = null;
+        boolean converted = false;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            // pages go to the file as they complete, the heap doesn't grow with the page count
+            document.setFlushOnNewPage(PdfWriter.getInstance(document, outputStream));
+            document.open();
+
+            // two images per worker keep the workers busy while the writer embeds one
+            new ImagePipeline(executor, threads * 2).run(pageCount, new ImagePipeline.Loader() {
+                @Override
+                public Image load(int index) throws Exception {
+                    return decoder.decode(source.read(index));
+                }
+            }, new ImagePipeline.Writer() {
+                @Override
+                public void write(int index, Image image) throws Exception {
+                    if (index > 0)
+                        document.newPage();
+
+                    // the image XObject is written to the file as it is added, then the image is dropped
+                    image.scaleToFit(document.getPageSize().getWidth() - document.leftMargin() - document.rightMargin(),
+                            document.getPageSize().getHeight() - document.topMargin() - document.bottomMargin());
+                    image.setAlignment(Image.ALIGN_CENTER | Image.ALIGN_TOP);
+                    document.add(image);
+
+                    if (listener != null)
+                        listener.onPageConverted(index + 1, pageCount);
+                }
+            });
+
+            document.close();
+            converted = true;
+            return savePdfDestination;
+        } catch (MagicalException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MagicalException(e.getMessage());
+        } finally {
+            if (ownExecutor != null)
+                ownExecutor.shutdownNow();
+            if (!converted) {
+                if (document.isOpen())
+                    try {
+                        document.close();
+                    } catch (Exception ignored) {
+                    }
+                if (outputStream != null)
+                    try {
+                        outputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * The threads an executor runs the decodes on: the size of a thread pool, or the core count
+     * when the pool is unbounded or not a ThreadPoolExecutor.
+     */
+    private static int threads(ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            int size = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+            if (size < Integer.MAX_VALUE)
+                return Math.max(1, size);
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Reads an encoded image from its file when the Uri resolves to one, or from the content resolver.
+     */
+    private byte[] readImage(Context context, Uri imageUri) throws IOException, MagicalException {
+        String path = PathUtil.getPath(context, imageUri);
+        InputStream inputStream;
+        if (path != null && new File(path).canRead())
+            inputStream = new FileInputStream(path);
+        else
+            inputStream = context.getContentResolver().openInputStream(imageUri);
+        if (inputStream == null)
+            throw new MagicalException("Image URI is not readable");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
 }
@@ -4,324 +4,186 @@ import android.content.Context;
 import android.graphics.PointF;
 import android.net.Uri;
 
-import com.lowagie.text.Annotation;
-import com.lowagie.text.Image;
-import com.lowagie.text.pdf.PdfContentByte;
-import com.lowagie.text.pdf.PdfGState;
-import com.lowagie.text.pdf.PdfImage;
-import com.lowagie.text.pdf.PdfIndirectObject;
-import com.lowagie.text.pdf.PdfLayer;
-import com.lowagie.text.pdf.PdfName;
-import com.lowagie.text.pdf.PdfReader;
-import com.lowagie.text.pdf.PdfStamper;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import ir.vasl.magicalpec.model.Placement;
 import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
-import ir.vasl.magicalpec.utils.OCGHelper.OCGRemover;
-import ir.vasl.magicalpec.utils.PublicValue;
 
 public class MagicalPdfCore {
 
+    /**
+     * How an edit is saved back into the document.
+     * FULL_REWRITE serializes the whole document again, INCREMENTAL appends only the new and
+     * modified objects as an incremental update section (new xref + trailer) at the end of the file.
+     * INCREMENTAL saves the writes only: the whole document is still read on every save.
+     */
+    public enum SaveModeEnum {FULL_REWRITE, INCREMENTAL}
+
     private static MagicalPdfCore instance;
 
-    public static MagicalPdfCore getInstance() {
+    private volatile SaveModeEnum saveMode = SaveModeEnum.FULL_REWRITE;
+
+    private volatile ExecutorService removalExecutor = null;
+
+    private volatile MetricsListener metricsListener = null;
+
+    public static synchronized MagicalPdfCore getInstance() {
         if (instance == null)
             instance = new MagicalPdfCore();
         return instance;
     }
 
-    public boolean addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover) throws MagicalException {
-        return addOCG(pointF, filePath, currPage, referenceHash, OCGCover, 0, 0);
+    public SaveModeEnum getSaveMode() {
+        return saveMode;
     }
 
-    public boolean addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) throws MagicalException {
-
-        // Hint: OCG -> optional content group
-        // Hint: Page Starts From --> 1 In OpenPdf Core
-        currPage++;
-
-        // OCG width & height
-        if (OCGWidth == 0 || OCGHeight == 0) {
-            OCGWidth = PublicValue.DEFAULT_OCG_WIDTH;
-            OCGHeight = PublicValue.DEFAULT_OCG_HEIGHT;
-        }
-
-        // get file and FileOutputStream
-        if (filePath == null || filePath.isEmpty())
-            throw new MagicalException("Input file is empty");
-
-        File file = new File(filePath);
-
-        if (!file.exists())
-            throw new MagicalException("Input file does not exists");
-
-        try {
-
-            // inout stream from file
-            InputStream inputStream = new FileInputStream(file);
-
-            // we create a reader for a certain document
-            PdfReader reader = new PdfReader(inputStream);
-
-            // we create a stamper that will copy the document to a new file
-            PdfStamper stamp = new PdfStamper(reader, new FileOutputStream(file));
-
-            // get watermark icon
-            Image img = Image.getInstance(OCGCover);
-            img.setAnnotation(new Annotation(0, 0, 0, 0, referenceHash));
-            img.scaleAbsolute(OCGWidth, OCGHeight);
-            img.setAbsolutePosition(pointF.x, pointF.y);
-            PdfImage stream = new PdfImage(img, referenceHash, null);
-            stream.put(new PdfName(PublicValue.KEY_SPECIAL_ID), new PdfName(referenceHash));
-            PdfIndirectObject ref = stamp.getWriter().addToBody(stream);
-            img.setDirectReference(ref.getIndirectReference());
-
-            // add as layer
-            PdfLayer wmLayer = new PdfLayer(referenceHash, stamp.getWriter());
-
-            // prepare transparency
-            PdfGState transparent = new PdfGState();
-            transparent.setAlphaIsShape(false);
-
-            // get page file number count
-            if (reader.getNumberOfPages() < currPage) {
-                stamp.close();
-                reader.close();
-                throw new MagicalException("Page index is out of pdf file page numbers");
-            }
-
-            // add annotation into target page
-            PdfContentByte over = stamp.getOverContent(currPage);
-            if (over == null) {
-                stamp.close();
-                reader.close();
-                throw new MagicalException("GetUnderContent() is null");
-            }
-
-            // add as layer
-            over.beginLayer(wmLayer);
-            over.setGState(transparent); // set block transparency properties
-            over.addImage(img);
-            over.endLayer();
-
-            // closing PdfStamper will generate the new PDF file
-            stamp.close();
-
-            // close reader
-            reader.close();
-
-            // finish method
-            return true;
-
-        } catch (Exception e) {
-            throw new MagicalException(e.getMessage());
-        }
+    /**
+     * Sets how edits that only add OCGs are saved. Removing layers always rewrites
+     * the whole document, otherwise the removed content would stay in the previous revision.
+     *
+     * @param saveMode the save mode, FULL_REWRITE by default
+     */
+    public void setSaveMode(SaveModeEnum saveMode) {
+        this.saveMode = saveMode;
     }
 
-    public boolean addOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, byte[] OCGCover) throws MagicalException {
-        return addOCG(context, pointF, uri, currPage, referenceHash, OCGCover);
+    public ExecutorService getRemovalExecutor() {
+        return removalExecutor;
     }
 
-    public boolean addOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) throws MagicalException {
-
-        // Hint: OCG -> optional content group
-        // Hint: Page Starts From --> 1 In OpenPdf Core
-        currPage++;
-
-        // OCG width & height
-        if (OCGWidth == 0 || OCGHeight == 0) {
-            OCGWidth = PublicValue.DEFAULT_OCG_WIDTH;
-            OCGHeight = PublicValue.DEFAULT_OCG_HEIGHT;
-        }
-
-        // Check file input
-        if (uri == null || uri.getPath() == null)
-            throw new MagicalException("Input file is not valid");
-
-        try {
-
-            // inout stream from file
-            // InputStream inputStream = new FileInputStream(uri);
-            InputStream inputStream = context.getContentResolver().openInputStream(uri);
-
-            // we create a reader for a certain document
-            PdfReader reader = new PdfReader(inputStream);
-
-            // create output stream from uri
-            FileOutputStream fileOutputStream = (FileOutputStream) context.getContentResolver().openOutputStream(uri);
-
-            // we create a stamper that will copy the document to a new file
-            PdfStamper stamp = new PdfStamper(reader, fileOutputStream);
-
-            // get watermark icon
-            Image img = Image.getInstance(OCGCover);
-            img.setAnnotation(new Annotation(0, 0, 0, 0, referenceHash));
-            img.scaleAbsolute(OCGWidth, OCGHeight);
-            img.setAbsolutePosition(pointF.x, pointF.y);
-            img.setTransparency(new int[]{0x00, 0x10}); // TADAAAAA :)))))))
-            PdfImage stream = new PdfImage(img, referenceHash, null);
-            stream.put(new PdfName(PublicValue.KEY_SPECIAL_ID), new PdfName(referenceHash));
-            PdfIndirectObject ref = stamp.getWriter().addToBody(stream);
-            img.setDirectReference(ref.getIndirectReference());
-
-            // add as layer
-            PdfLayer wmLayer = new PdfLayer(referenceHash, stamp.getWriter());
-
-            // prepare transparency
-            PdfGState transparent = new PdfGState();
-            transparent.setAlphaIsShape(true);
-            transparent.setFillOpacity(0.70F); // TADAAAAA :)))))))
-
-            // get page file number count
-            if (reader.getNumberOfPages() < currPage) {
-                stamp.close();
-                reader.close();
-                throw new MagicalException("Page index is out of pdf file page numbers");
-            }
-
-            // add annotation into target page
-            PdfContentByte over = stamp.getOverContent(currPage);
-            if (over == null) {
-                stamp.close();
-                reader.close();
-                throw new MagicalException("GetUnderContent() is null");
-            }
-
-            // add as layer
-            over.beginLayer(wmLayer);
-            over.setGState(transparent); // set block transparency properties
-            over.addImage(img);
-            over.endLayer();
-
-            // closing PdfStamper will generate the new PDF file
-            stamp.close();
-
-            // close reader
-            reader.close();
-
-            // finish method
-            return true;
-
-        } catch (Exception e) {
-            throw new MagicalException(e.getMessage());
-        }
+    /**
+     * Sets the executor used to rewrite page content streams in parallel when removing OCGs,
+     * for example a ForkJoinPool sized for bulk jobs on large documents.
+     *
+     * @param removalExecutor the executor, or null (default) to rewrite pages on the calling thread
+     */
+    public void setRemovalExecutor(ExecutorService removalExecutor) {
+        this.removalExecutor = removalExecutor;
     }
 
-    public boolean removeOCG(String filePath, String annotationHash) throws MagicalException {
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
 
-        // get file and FileOutputStream
-        if (filePath == null || filePath.isEmpty())
-            throw new MagicalException("Input file is empty");
+    /**
+     * Sets a listener receiving the phase times, byte counts and pages touched of every edit,
+     * to ship them to a telemetry backend.
+     *
+     * @param metricsListener the listener, or null (default) for none
+     */
+    public void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
 
-        File file = new File(filePath);
+    public boolean addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover) throws MagicalException {
+        return addOCG(pointF, filePath, currPage, referenceHash, OCGCover, 0, 0);
+    }
 
-        if (!file.exists())
-            throw new MagicalException("Input file does not exists");
+    public boolean addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) throws MagicalException {
+        return edit(filePath).addOCG(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight).commit();
+    }
 
-        try {
+    public boolean addOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, byte[] OCGCover) throws MagicalException {
+        return addOCG(context, pointF, uri, currPage, referenceHash, OCGCover, 0, 0);
+    }
 
-            // inout stream from file
-            InputStream inputStream = new FileInputStream(file);
+    public boolean addOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) throws MagicalException {
+        return edit(context, uri).addOCG(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight).commit();
+    }
 
-            // we create a reader for a certain document
-            PdfReader pdfReader = new PdfReader(inputStream);
+    /**
+     * Registers a cover once, so stamps can refer to it by id without hashing or decoding it again.
+     *
+     * @param OCGCover the encoded cover image
+     * @return the id of the cover, to pass to addOCG instead of the bytes
+     */
+    public String registerCover(byte[] OCGCover) {
+        return CoverCache.getInstance().register(OCGCover);
+    }
 
-            // we create a stamper that will copy the document to a new file
-            PdfStamper pdfStamper = new PdfStamper(pdfReader, new FileOutputStream(file));
+    public void unregisterCover(String coverId) {
+        CoverCache.getInstance().unregister(coverId);
+    }
 
-            // remove target object
-            OCGRemover ocgRemover = new OCGRemover();
-            ocgRemover.removeLayers(pdfReader, annotationHash);
+    public boolean addOCG(PointF pointF, String filePath, int currPage, String referenceHash, String coverId) throws MagicalException {
+        return edit(filePath).addOCG(pointF, currPage, referenceHash, coverId).commit();
+    }
 
-            // closing PdfStamper will generate the new PDF file
-            pdfStamper.close();
+    public boolean addOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, String coverId) throws MagicalException {
+        return edit(context, uri).addOCG(pointF, currPage, referenceHash, coverId).commit();
+    }
 
-            // close reader
-            pdfReader.close();
+    /**
+     * Stamps one cover at many positions and pages with a single read and write of the document.
+     *
+     * @param filePath   the pdf file
+     * @param OCGCover   the encoded cover image, embedded once
+     * @param placements the stamps, each one its own layer
+     */
+    public boolean addOCGs(String filePath, byte[] OCGCover, List<Placement> placements) throws MagicalException {
+        return edit(filePath).addOCGs(OCGCover, placements).commit();
+    }
 
-            // finish method
-            return true;
+    public boolean addOCGs(Context context, Uri uri, byte[] OCGCover, List<Placement> placements) throws MagicalException {
+        return edit(context, uri).addOCGs(OCGCover, placements).commit();
+    }
 
-        } catch (Exception e) {
-            throw new MagicalException(e.getMessage());
-        }
+    public boolean removeOCG(String filePath, String annotationHash) throws MagicalException {
+        return edit(filePath).removeOCG(annotationHash).commit();
     }
 
     public boolean removeOCG(Context context, Uri uri, String annotationHash) throws MagicalException {
+        return edit(context, uri).removeOCG(annotationHash).commit();
+    }
 
-        // Check file input
-        if (uri == null || uri.getPath() == null)
-            throw new MagicalException("Input file is not valid");
-
-        try {
-
-            // inout stream from file
-            // InputStream inputStream = new FileInputStream(file);
-            InputStream inputStream = context.getContentResolver().openInputStream(uri);
-
-            // we create a reader for a certain document
-            PdfReader pdfReader = new PdfReader(inputStream);
-
-            // create output stream from uri
-            FileOutputStream fileOutputStream = (FileOutputStream) context.getContentResolver().openOutputStream(uri);
-
-            // we create a stamper that will copy the document to a new file
-            PdfStamper pdfStamper = new PdfStamper(pdfReader, fileOutputStream);
-
-            // remove target object
-            OCGRemover ocgRemover = new OCGRemover();
-            ocgRemover.removeLayers(pdfReader, annotationHash);
-
-            // closing PdfStamper will generate the new PDF file
-            pdfStamper.close();
-
-            // close reader
-            pdfReader.close();
-
-            // finish method
-            return true;
-
-        } catch (Exception e) {
-            throw new MagicalException(e.getMessage());
-        }
+    /**
+     * Removes every stamp made by this library from a document, with a single pass over its pages.
+     *
+     * @param filePath the pdf file
+     */
+    public boolean removeAllOCGs(String filePath) throws MagicalException {
+        return edit(filePath).removeAllOCGs().commit();
     }
 
-    public boolean removeAllOCGs() {
-        return true;
+    public boolean removeAllOCGs(Context context, Uri uri) throws MagicalException {
+        return edit(context, uri).removeAllOCGs().commit();
     }
 
     public boolean updateOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] newOCGCover) throws MagicalException {
-
-        // remove old OCG
-        if (!removeOCG(filePath, referenceHash))
-            throw new MagicalException("Cannot remove OCG with target reference");
-
-        // add new OCG
-        if (!addOCG(pointF, filePath, currPage, referenceHash, newOCGCover))
-            throw new MagicalException("Cannot add new OCG with target reference");
-
-        // finish method
-        return true;
-
+        return edit(filePath).updateOCG(pointF, currPage, referenceHash, newOCGCover).commit();
     }
 
     public boolean updateOCG(Context context, PointF pointF, Uri uri, int currPage, String referenceHash, byte[] newOCGCover) throws MagicalException {
+        return edit(context, uri).updateOCG(pointF, currPage, referenceHash, newOCGCover).commit();
+    }
 
-        // remove old OCG
-        if (!removeOCG(context, uri, referenceHash))
-            throw new MagicalException("Cannot remove OCG with target reference");
-
-        // add new OCG
-        if (!addOCG(context, pointF, uri, currPage, referenceHash, newOCGCover))
-            throw new MagicalException("Cannot add new OCG with target reference");
+    /**
+     * Starts a batch of OCG edits on a file, applied with a single read and write on {@link OcgBatch#commit()}.
+     *
+     * @param filePath the pdf file
+     */
+    public OcgBatch edit(String filePath) throws MagicalException {
+        return edit(PdfTarget.of(filePath), false);
+    }
 
-        // finish method
-        return true;
+    /**
+     * Starts a batch of OCG edits on a content Uri, applied with a single read and write on {@link OcgBatch#commit()}.
+     *
+     * @param context a context to resolve the uri
+     * @param uri     the pdf document
+     */
+    public OcgBatch edit(Context context, Uri uri) throws MagicalException {
+        return edit(PdfTarget.of(context, uri), true);
+    }
 
+    /**
+     * Starts a batch on a target with the current settings of the core.
+     *
+     * @param translucent true to stamp covers with transparency, as done for content Uris
+     */
+    OcgBatch edit(PdfTarget target, boolean translucent) {
+        return new OcgBatch(target, translucent, saveMode, removalExecutor, metricsListener);
     }
 
 }
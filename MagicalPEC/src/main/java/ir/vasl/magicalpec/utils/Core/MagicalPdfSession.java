@@ -0,0 +1,455 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.net.Uri;
+
+import com.lowagie.text.pdf.PdfReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ir.vasl.magicalpec.model.OperationResult;
+import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
+
+/**
+ * An open document that collects OCG edits in memory and writes them lazily.
+ * <p>
+ * The session keeps a partial PdfReader over the document (xref, trailer and the page tree,
+ * read once) and an OcgBatch of the pending edits. Edits are validated against the cached reader
+ * and written together, {@link #getDebounceMillis()} after the last edit or on {@link #save()},
+ * with that same reader. A PdfStamper consumes its reader, so the next edit after a write parses
+ * the document again, once.
+ * <p>
+ * Sessions are shared per document: {@link #open(String)} returns the session already open on a
+ * path. Open sessions are kept in an LRU cache bounded by their estimated heap size; when the
+ * bound is exceeded the least recently used ones are trimmed: their pending edits are saved and
+ * their reader is released. A trimmed session stays open and usable, it reopens its reader on
+ * the next edit. A write that fails outside of {@link #save()} (debounced or trimmed) is reported
+ * to the {@link MetricsListener} and thrown by the next save().
+ */
+public class MagicalPdfSession implements AutoCloseable {
+
+    private static final long DEFAULT_MAX_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+    /**
+     * A rough heap cost per xref entry of a partial reader: its offsets and the cached object slot.
+     */
+    private static final long BYTES_PER_XREF_ENTRY = 32;
+
+    private static final Map<String, MagicalPdfSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private static long maxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
+    private static volatile long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private static ScheduledExecutorService scheduler;
+
+    private final String key;
+    private final PdfTarget target;
+    private final boolean translucent;
+
+    private PdfReader reader;
+    private OcgBatch batch;
+    // written under the session lock, read by the eviction without it
+    private volatile long pendingBytes = 0;
+    private volatile long readerBytes = 0;
+    private ScheduledFuture<?> scheduledSave;
+    private MagicalException lastError;
+    private OperationResult lastResult;
+    private boolean closed = false;
+
+    private MagicalPdfSession(String key, PdfTarget target, boolean translucent) {
+        this.key = key;
+        this.target = target;
+        this.translucent = translucent;
+    }
+
+    /**
+     * Opens a session on a file, or returns the one already open.
+     *
+     * @param filePath the pdf file
+     */
+    public static MagicalPdfSession open(String filePath) throws MagicalException {
+        PdfTarget target = PdfTarget.of(filePath);
+        return open(target.toString(), target, false);
+    }
+
+    /**
+     * Opens a session on a content Uri, or returns the one already open.
+     *
+     * @param context a context to resolve the uri
+     * @param uri     the pdf document
+     */
+    public static MagicalPdfSession open(Context context, Uri uri) throws MagicalException {
+        PdfTarget target = PdfTarget.of(context, uri);
+        return open(target.toString(), target, true);
+    }
+
+    private static MagicalPdfSession open(String key, PdfTarget target, boolean translucent) throws MagicalException {
+        MagicalPdfSession session;
+        synchronized (sessions) {
+            session = sessions.get(key);
+            if (session == null) {
+                session = new MagicalPdfSession(key, target, translucent);
+                sessions.put(key, session);
+            }
+        }
+        // another session may be saving, the caller doesn't wait for it
+        evictLater();
+        return session;
+    }
+
+    /**
+     * Sets the bound of the open documents cache, in estimated heap bytes.
+     *
+     * @param maxCacheBytes the bound, 32 MB by default
+     */
+    public static void setMaxCacheBytes(long maxCacheBytes) {
+        synchronized (sessions) {
+            MagicalPdfSession.maxCacheBytes = maxCacheBytes;
+        }
+        evictLater();
+    }
+
+    public static long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * Sets how long pending edits wait for another edit before they are written.
+     *
+     * @param debounceMillis the delay, 2000 ms by default, 0 to write only on {@link #save()}
+     */
+    public static void setDebounceMillis(long debounceMillis) {
+        MagicalPdfSession.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Saves and closes every open session.
+     */
+    public static void closeAll() throws MagicalException {
+        List<MagicalPdfSession> open;
+        synchronized (sessions) {
+            open = new ArrayList<>(sessions.values());
+        }
+        MagicalException error = null;
+        for (MagicalPdfSession session : open) {
+            try {
+                session.close();
+            } catch (MagicalException e) {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public synchronized MagicalPdfSession addOCG(PointF pointF, int currPage, String referenceHash, byte[] OCGCover) throws MagicalException {
+        return addOCG(pointF, currPage, referenceHash, OCGCover, 0, 0);
+    }
+
+    public synchronized MagicalPdfSession addOCG(PointF pointF, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) throws MagicalException {
+        checkPage(currPage);
+        pending().addOCG(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight);
+        pendingBytes += OCGCover.length;
+        edited();
+        return this;
+    }
+
+    public synchronized MagicalPdfSession removeOCG(String referenceHash) throws MagicalException {
+        checkOpen();
+        pending().removeOCG(referenceHash);
+        edited();
+        return this;
+    }
+
+    public synchronized MagicalPdfSession removeAllOCGs() throws MagicalException {
+        checkOpen();
+        pending().removeAllOCGs();
+        edited();
+        return this;
+    }
+
+    public synchronized MagicalPdfSession updateOCG(PointF pointF, int currPage, String referenceHash, byte[] newOCGCover) throws MagicalException {
+        checkPage(currPage);
+        pending().updateOCG(pointF, currPage, referenceHash, newOCGCover);
+        pendingBytes += newOCGCover.length;
+        edited();
+        return this;
+    }
+
+    /**
+     * @return the number of pages of the document, from the cached reader
+     */
+    public synchronized int getNumberOfPages() throws MagicalException {
+        checkOpen();
+        return reader().getNumberOfPages();
+    }
+
+    /**
+     * @return true if edits are waiting to be written
+     */
+    public synchronized boolean hasPendingEdits() {
+        return batch != null && !batch.isEmpty();
+    }
+
+    /**
+     * @return the cost of the last write of this session, failed or not, or null if nothing was written yet
+     */
+    public synchronized OperationResult getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Writes the pending edits now.
+     *
+     * @return true when the document is saved
+     * @throws MagicalException if the edits cannot be written, or a debounced write failed since the last save
+     */
+    public synchronized boolean save() throws MagicalException {
+        cancelScheduledSave();
+        if (lastError != null) {
+            MagicalException error = lastError;
+            lastError = null;
+            throw error;
+        }
+        if (batch == null || batch.isEmpty())
+            return true;
+        OcgBatch committing = batch;
+        batch = null;
+        pendingBytes = 0;
+        PdfReader opened = reader;
+        // a stamper consumes its reader, and a reader of an older revision can't be reused
+        reader = null;
+        readerBytes = 0;
+        if (opened != null && target.length() != opened.getFileLength()) {
+            opened.close();
+            opened = null;
+        }
+        try {
+            return committing.commit(opened);
+        } finally {
+            lastResult = committing.getResult();
+        }
+    }
+
+    /**
+     * Saves the pending edits and releases the document.
+     */
+    @Override
+    public void close() throws MagicalException {
+        synchronized (sessions) {
+            if (sessions.get(key) == this)
+                sessions.remove(key);
+        }
+        synchronized (this) {
+            if (closed)
+                return;
+            try {
+                save();
+            } finally {
+                closed = true;
+                release();
+            }
+        }
+    }
+
+    /**
+     * Drops the pending edits and cancels their debounced write. It runs on the session
+     * scheduler, so the caller doesn't wait for a write in progress, which still completes.
+     */
+    public void discardLater() {
+        scheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MagicalPdfSession.this) {
+                    cancelScheduledSave();
+                    batch = null;
+                    pendingBytes = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the estimated heap size of the cached reader and the pending covers, read without
+     * the session lock so a running save doesn't hold it up
+     */
+    long estimatedBytes() {
+        return pendingBytes + readerBytes;
+    }
+
+    /**
+     * Saves the pending edits and releases the reader, the session stays open.
+     */
+    synchronized void trim() {
+        if (closed)
+            return;
+        try {
+            save();
+        } catch (MagicalException e) {
+            failedInBackground(e);
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readerBytes = 0;
+        }
+        try {
+            target.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Keeps the error of a write nobody waited for, for the next save(), and reports it to the
+     * metrics listener if the commit did not get to report it itself.
+     */
+    private void failedInBackground(MagicalException e) {
+        lastError = e;
+        // a failed commit (or an error rethrown by save) is already reported
+        if (lastResult != null && lastResult.getCause() != null)
+            return;
+        lastResult = OperationResult.failed(key, e);
+        MetricsListener listener = MagicalPdfCore.getInstance().getMetricsListener();
+        if (listener != null)
+            listener.onOperation(lastResult);
+    }
+
+    private void checkOpen() throws MagicalException {
+        if (closed)
+            throw new MagicalException("Session is closed");
+    }
+
+    private void checkPage(int currPage) throws MagicalException {
+        checkOpen();
+        // Hint: Page Starts From --> 1 In OpenPdf Core
+        if (reader().getNumberOfPages() < currPage + 1)
+            throw new MagicalException("Page index is out of pdf file page numbers");
+    }
+
+    private PdfReader reader() throws MagicalException {
+        if (reader == null) {
+            try {
+                reader = target.openReader();
+                readerBytes = reader.getXrefSize() * BYTES_PER_XREF_ENTRY;
+            } catch (IOException e) {
+                throw new MagicalException(e.getMessage());
+            }
+            evictLater();
+        }
+        return reader;
+    }
+
+    private OcgBatch pending() {
+        if (batch == null)
+            batch = MagicalPdfCore.getInstance().edit(target, translucent);
+        return batch;
+    }
+
+    /**
+     * Restarts the debounce delay after an edit.
+     */
+    private void edited() {
+        cancelScheduledSave();
+        long delay = debounceMillis;
+        if (delay > 0) {
+            scheduledSave = scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (MagicalPdfSession.this) {
+                        if (closed)
+                            return;
+                        try {
+                            save();
+                        } catch (MagicalException e) {
+                            failedInBackground(e);
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        evictLater();
+    }
+
+    private void cancelScheduledSave() {
+        if (scheduledSave != null) {
+            scheduledSave.cancel(false);
+            scheduledSave = null;
+        }
+    }
+
+    private void release() {
+        cancelScheduledSave();
+        batch = null;
+        pendingBytes = 0;
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readerBytes = 0;
+        }
+        try {
+            target.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Evicts on the scheduler, so the caller never waits for a session that is saving.
+     */
+    private static void evictLater() {
+        scheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        });
+    }
+
+    /**
+     * Trims the least recently used sessions until the cache fits its bound. The most recently
+     * used session is always kept. Trimmed sessions stay in the cache, so a caller holding one
+     * and a later {@link #open(String)} still share it.
+     */
+    private static void evict() {
+        List<MagicalPdfSession> open;
+        long bound;
+        synchronized (sessions) {
+            open = new ArrayList<>(sessions.values());
+            bound = maxCacheBytes;
+        }
+        long total = 0;
+        for (MagicalPdfSession session : open)
+            total += session.estimatedBytes();
+        for (int i = 0; total > bound && i < open.size() - 1; i++) {
+            MagicalPdfSession session = open.get(i);
+            long bytes = session.estimatedBytes();
+            if (bytes == 0)
+                continue;
+            total -= bytes;
+            session.trim();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MagicalPdfSession");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+}
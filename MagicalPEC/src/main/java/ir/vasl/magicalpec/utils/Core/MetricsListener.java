@@ -0,0 +1,13 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import ir.vasl.magicalpec.model.OperationResult;
+
+/**
+ * Receives the result of every committed OcgBatch, see {@link MagicalPdfCore#setMetricsListener}.
+ * It is called on the thread that committed the batch, so it should only hand the numbers over.
+ */
+public interface MetricsListener {
+
+    void onOperation(OperationResult result);
+
+}
@@ -0,0 +1,689 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.graphics.PointF;
+
+import com.lowagie.text.Annotation;
+import com.lowagie.text.DocWriter;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfGState;
+import com.lowagie.text.pdf.PdfImage;
+import com.lowagie.text.pdf.PdfIndirectObject;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfLayer;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfStream;
+import com.lowagie.text.pdf.PdfString;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+import ir.vasl.magicalpec.model.OperationResult;
+import ir.vasl.magicalpec.model.Placement;
+import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
+import ir.vasl.magicalpec.utils.OCGHelper.OCGPageIndex;
+import ir.vasl.magicalpec.utils.OCGHelper.OCGRemover;
+import ir.vasl.magicalpec.utils.OCGHelper.OCGUpdater;
+import ir.vasl.magicalpec.utils.PublicFunction;
+import ir.vasl.magicalpec.utils.PublicValue;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+/**
+ * Collects OCG adds, removes and updates on one document and applies them with a single
+ * PdfReader + PdfStamper pass, see {@link MagicalPdfCore#edit(String)}.
+ * <p>
+ * Operations keep their sequential meaning: updates of stamps that stay on their page are edited
+ * in place, all removes then run in one OCGRemover pass, and finally the last add of every
+ * reference hash is stamped. An add followed by a remove of the same hash is dropped (and costs
+ * no removal pass unless the document already had that layer), an update of a stamp added in the
+ * same batch just moves that add, and an update that changes the page of a stamp becomes a remove
+ * plus an add. A batch that collapses to nothing does not write the document.
+ * A batch is not thread-safe and can be committed once.
+ */
+public class OcgBatch {
+
+    private static final PdfName COVER_NAME = new PdfName("Cover");
+    private static final byte[] COVER_FORM_CONTENT = DocWriter.getISOBytes("/Cover Do");
+
+    private final PdfTarget target;
+    private final boolean translucent;
+    private final MagicalPdfCore.SaveModeEnum saveMode;
+    private final ExecutorService removalExecutor;
+    private final MetricsListener metricsListener;
+
+    private final Set<String> removes = new LinkedHashSet<>();
+    private final Map<String, AddOperation> adds = new LinkedHashMap<>();
+    private final Map<String, AddOperation> updates = new LinkedHashMap<>();
+
+    private boolean removeAll = false;
+    private boolean committed = false;
+    private CountingOutputStream written;
+    private final Map<String, PdfIndirectReference> covers = new HashMap<>();
+    private OperationResult result;
+
+    OcgBatch(PdfTarget target, boolean translucent, MagicalPdfCore.SaveModeEnum saveMode, ExecutorService removalExecutor,
+             MetricsListener metricsListener) {
+        this.target = target;
+        this.translucent = translucent;
+        this.saveMode = saveMode;
+        this.removalExecutor = removalExecutor;
+        this.metricsListener = metricsListener;
+    }
+
+    public OcgBatch addOCG(PointF pointF, int currPage, String referenceHash, byte[] OCGCover) {
+        return addOCG(pointF, currPage, referenceHash, OCGCover, 0, 0);
+    }
+
+    public OcgBatch addOCG(PointF pointF, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) {
+        adds.put(referenceHash, new AddOperation(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight));
+        return this;
+    }
+
+    /**
+     * Adds a stamp with a cover registered with {@link MagicalPdfCore#registerCover(byte[])}.
+     *
+     * @throws MagicalException if the cover is not registered
+     */
+    public OcgBatch addOCG(PointF pointF, int currPage, String referenceHash, String coverId) throws MagicalException {
+        return addOCG(pointF, currPage, referenceHash, coverId, 0, 0);
+    }
+
+    public OcgBatch addOCG(PointF pointF, int currPage, String referenceHash, String coverId, float OCGWidth, float OCGHeight) throws MagicalException {
+        adds.put(referenceHash, new AddOperation(pointF, currPage, referenceHash, registeredCover(coverId), coverId, OCGWidth, OCGHeight));
+        return this;
+    }
+
+    /**
+     * Adds one cover at many positions. The cover is hashed once and, like any cover, embedded
+     * once per document; every placement is still its own layer.
+     *
+     * @param OCGCover   the encoded cover image
+     * @param placements the positions, pages and reference hashes of the stamps
+     */
+    public OcgBatch addOCGs(byte[] OCGCover, List<Placement> placements) {
+        String coverId = PublicFunction.getContentHash(OCGCover);
+        for (Placement placement : placements) {
+            adds.put(placement.getReferenceHash(), new AddOperation(placement.getPointF(), placement.getCurrPage(),
+                    placement.getReferenceHash(), OCGCover, coverId, placement.getOCGWidth(), placement.getOCGHeight()));
+        }
+        return this;
+    }
+
+    public OcgBatch removeOCG(String referenceHash) {
+        adds.remove(referenceHash);
+        updates.remove(referenceHash);
+        removes.add(referenceHash);
+        return this;
+    }
+
+    /**
+     * Removes every stamp made by this library (the layers named by {@link PublicValue#KEY_SPECIAL_ID}
+     * markers on the pages) in the single removal pass of the commit. Adds and updates made before
+     * are dropped, the ones made after are kept; an update made after places its stamp anew.
+     */
+    public OcgBatch removeAllOCGs() {
+        adds.clear();
+        updates.clear();
+        removeAll = true;
+        return this;
+    }
+
+    public OcgBatch updateOCG(PointF pointF, int currPage, String referenceHash, byte[] newOCGCover) {
+        return update(new AddOperation(pointF, currPage, referenceHash, newOCGCover, 0, 0));
+    }
+
+    /**
+     * Updates a stamp with a cover registered with {@link MagicalPdfCore#registerCover(byte[])}.
+     *
+     * @throws MagicalException if the cover is not registered
+     */
+    public OcgBatch updateOCG(PointF pointF, int currPage, String referenceHash, String newCoverId) throws MagicalException {
+        return update(new AddOperation(pointF, currPage, referenceHash, registeredCover(newCoverId), newCoverId, 0, 0));
+    }
+
+    private OcgBatch update(AddOperation operation) {
+        String referenceHash = operation.referenceHash;
+        // after a removal the stamp is gone by the time the update would move it
+        if (removeAll || adds.containsKey(referenceHash) || removes.contains(referenceHash))
+            adds.put(referenceHash, operation);
+        else
+            updates.put(referenceHash, operation);
+        return this;
+    }
+
+    private static byte[] registeredCover(String coverId) throws MagicalException {
+        byte[] cover = CoverCache.getInstance().getCover(coverId);
+        if (cover == null)
+            throw new MagicalException("Cover is not registered");
+        return cover;
+    }
+
+    /**
+     * @return true if the batch has no pending operation
+     */
+    public boolean isEmpty() {
+        return !removeAll && removes.isEmpty() && adds.isEmpty() && updates.isEmpty();
+    }
+
+    /**
+     * Applies all collected operations to the document and writes it once.
+     * The cost of the commit is available from {@link #getResult()} afterwards, failed or not.
+     *
+     * @return true when the document is saved
+     * @throws MagicalException if the batch is already committed or the document cannot be edited
+     */
+    public boolean commit() throws MagicalException {
+        return commit(null);
+    }
+
+    /**
+     * Commits the batch with a reader opened earlier on the target, see {@link MagicalPdfSession}.
+     * The reader is consumed by the commit, unless the batch is empty.
+     *
+     * @param opened a reader over the current content of the target, or null to open one
+     */
+    boolean commit(PdfReader opened) throws MagicalException {
+
+        if (committed)
+            throw new MagicalException("Batch is already committed");
+        committed = true;
+
+        if (isEmpty())
+            return true;
+
+        long started = System.nanoTime();
+        long mark = started;
+        long readNanos = 0, parseNanos = 0, removalNanos = 0, writeNanos = 0;
+        long bytesRead = -1;
+        Set<Integer> pages = new TreeSet<>();
+        Exception cause = null;
+
+        // the phases of the commit nest in its span, the removal in the write that holds the stamper
+        TraceSpan commitSpan = TraceSpan.begin("OcgBatch.commit");
+        try {
+
+            // we create a partial reader for a certain document, objects are read when touched
+            TraceSpan phase = TraceSpan.begin("OcgBatch.read");
+            PdfReader reader;
+            try {
+                TraceSpan span = TraceSpan.begin("PdfReader");
+                try {
+                    reader = opened != null ? opened : target.openReader();
+                } finally {
+                    TraceSpan.end(span);
+                }
+            } finally {
+                TraceSpan.end(phase);
+            }
+            bytesRead = reader.getFileLength();
+            readNanos = System.nanoTime() - mark;
+            mark = System.nanoTime();
+
+            phase = TraceSpan.begin("OcgBatch.locate");
+            OCGUpdater ocgUpdater = new OCGUpdater();
+            Map<AddOperation, OCGUpdater.Stamp> located = new LinkedHashMap<>();
+            OCGPageIndex index = null;
+            try {
+                // get page file number count
+                for (AddOperation operation : adds.values()) {
+                    // Hint: Page Starts From --> 1 In OpenPdf Core
+                    if (reader.getNumberOfPages() < operation.currPage + 1) {
+                        reader.close();
+                        throw new MagicalException("Page index is out of pdf file page numbers");
+                    }
+                }
+                for (AddOperation operation : updates.values()) {
+                    if (reader.getNumberOfPages() < operation.currPage + 1) {
+                        reader.close();
+                        throw new MagicalException("Page index is out of pdf file page numbers");
+                    }
+                }
+
+                // stamps that stay on their page are edited in place, the others are removed and added again
+                for (AddOperation operation : updates.values()) {
+                    OCGUpdater.Stamp ocgStamp = locate(ocgUpdater, reader, operation);
+                    if (ocgStamp != null) {
+                        located.put(operation, ocgStamp);
+                    } else {
+                        removes.add(operation.referenceHash);
+                        adds.put(operation.referenceHash, operation);
+                    }
+                }
+
+                // a layer no page references (e.g. added and removed again before commit) needs no removal pass
+                if (!removes.isEmpty() || removeAll) {
+                    index = OCGPageIndex.build(reader);
+                    if (removeAll)
+                        removes.addAll(index.getStampNames());
+                    removes.retainAll(index.getNames());
+                    pages.addAll(index.getPages(removes));
+                }
+                for (AddOperation operation : located.keySet())
+                    pages.add(operation.currPage + 1);
+                for (AddOperation operation : adds.values())
+                    pages.add(operation.currPage + 1);
+            } finally {
+                TraceSpan.end(phase);
+            }
+            parseNanos = System.nanoTime() - mark;
+            if (removes.isEmpty() && adds.isEmpty() && located.isEmpty()) {
+                reader.close();
+                return true;
+            }
+
+            // removing content changes existing objects, so only pure adds can be appended
+            boolean incremental = saveMode == MagicalPdfCore.SaveModeEnum.INCREMENTAL && removes.isEmpty();
+
+            // we create a stamper that will copy the document (or append to it) in the same file
+            mark = System.nanoTime();
+            phase = TraceSpan.begin("OcgBatch.write");
+            try {
+                PdfStamper stamp = createStamper(reader, incremental);
+
+                // move updated objects, their content streams are rewritten before any removal replaces them
+                for (OCGUpdater.Stamp ocgStamp : located.values())
+                    ocgUpdater.move(stamp, ocgStamp);
+
+                // remove every target object in one pass
+                if (!removes.isEmpty()) {
+                    long removal = System.nanoTime();
+                    TraceSpan span = TraceSpan.begin("OcgBatch.remove");
+                    try {
+                        OCGRemover ocgRemover = new OCGRemover(removalExecutor);
+                        ocgRemover.removeLayers(reader, index, removes.toArray(new String[0]));
+                    } finally {
+                        TraceSpan.end(span);
+                    }
+                    removalNanos = System.nanoTime() - removal;
+                }
+
+                // reuse the cover images already on the touched pages
+                Set<Integer> stampedPages = new TreeSet<>();
+                for (AddOperation operation : located.keySet())
+                    stampedPages.add(operation.currPage + 1);
+                for (AddOperation operation : adds.values())
+                    stampedPages.add(operation.currPage + 1);
+                findCovers(reader, stampedPages);
+
+                // swap the cover of updated objects
+                for (Map.Entry<AddOperation, OCGUpdater.Stamp> entry : located.entrySet()) {
+                    Image img = createCover(stamp, entry.getKey());
+                    ocgUpdater.replaceCover(stamp, entry.getValue(), img.getDirectReference());
+                }
+
+                // add new objects, page by page so each over content is fetched once
+                List<AddOperation> ordered = new ArrayList<>(adds.values());
+                Collections.sort(ordered, new Comparator<AddOperation>() {
+                    @Override
+                    public int compare(AddOperation o1, AddOperation o2) {
+                        return o1.currPage < o2.currPage ? -1 : (o1.currPage == o2.currPage ? 0 : 1);
+                    }
+                });
+                // the stamper only keeps the layers it has read in /OCProperties, so read them first
+                if (!ordered.isEmpty())
+                    readLayers(stamp, reader);
+                PdfGState transparent = createGState();
+                PdfContentByte over = null;
+                int overPage = -1;
+                for (AddOperation operation : ordered) {
+                    if (operation.currPage != overPage) {
+                        overPage = operation.currPage;
+                        over = getOverContent(stamp, overPage);
+                    }
+                    if (over == null) {
+                        stamp.close();
+                        reader.close();
+                        throw new MagicalException("GetUnderContent() is null");
+                    }
+                    stampOCG(stamp, over, transparent, operation);
+                }
+
+                // the stamper fills /OCProperties of the catalog on close but only appends what is marked
+                if (incremental && !adds.isEmpty())
+                    markCatalog(stamp, reader);
+
+                // closing PdfStamper will generate the new PDF file
+                TraceSpan span = TraceSpan.begin("PdfStamper.close");
+                try {
+                    stamp.close();
+                } finally {
+                    TraceSpan.end(span);
+                }
+            } finally {
+                TraceSpan.end(phase);
+            }
+            writeNanos = System.nanoTime() - mark - removalNanos;
+
+            // close reader
+            reader.close();
+
+            // finish method
+            return true;
+
+        } catch (MagicalException e) {
+            cause = e;
+            throw e;
+        } catch (Exception e) {
+            cause = e;
+            throw new MagicalException(e.getMessage());
+        } finally {
+            // the partial reader keeps the source open until here
+            try {
+                target.close();
+            } catch (IOException ignored) {
+            }
+            result = new OperationResult(target.toString(), readNanos, parseNanos, removalNanos, writeNanos,
+                    System.nanoTime() - started, bytesRead, written == null ? 0 : written.count, pages.size(), cause);
+            if (metricsListener != null)
+                metricsListener.onOperation(result);
+            TraceSpan.end(commitSpan);
+        }
+    }
+
+    /**
+     * @return the cost of the commit, or null if the batch is not committed yet or was empty
+     */
+    public OperationResult getResult() {
+        return result;
+    }
+
+    /**
+     * Reads the layers of the document into the stamper, so closing it lists them in /OCProperties
+     * next to the new ones instead of replacing them.
+     */
+    private static void readLayers(PdfStamper stamp, PdfReader reader) {
+        PdfDictionary ocproperties = reader.getCatalog().getAsDict(PdfName.OCPROPERTIES);
+        PdfDictionary d = ocproperties == null ? null : ocproperties.getAsDict(PdfName.D);
+        // OpenPDF 1.3.24 keeps a null radio group array when /D has none, and fails on close
+        if (d != null && d.getAsArray(PdfName.RBGROUPS) == null)
+            d.put(PdfName.RBGROUPS, new PdfArray());
+        stamp.getPdfLayers();
+    }
+
+    /**
+     * Marks the catalog and its /OCProperties for the update section, so the new layers are
+     * listed in /OCGs and /D /Order of an incremental save and viewers can toggle them.
+     */
+    private static void markCatalog(PdfStamper stamp, PdfReader reader) {
+        OCGUpdater.markUsed(stamp, reader.getTrailer().get(PdfName.ROOT));
+        PdfObject ocproperties = reader.getCatalog().get(PdfName.OCPROPERTIES);
+        OCGUpdater.markUsed(stamp, ocproperties);
+        // the stamper replaces the arrays of /OCProperties and /D with new direct ones
+        PdfDictionary dict = reader.getCatalog().getAsDict(PdfName.OCPROPERTIES);
+        if (dict != null)
+            OCGUpdater.markUsed(stamp, dict.get(PdfName.D));
+    }
+
+    /**
+     * Stamps one OCG cover image as a layer into the over content of its page.
+     */
+    private void stampOCG(PdfStamper stamp, PdfContentByte over, PdfGState transparent, AddOperation operation) throws IOException, DocumentException {
+
+        // Hint: OCG -> optional content group
+        // get watermark icon
+        Image img = createCover(stamp, operation);
+
+        // add as layer
+        PdfLayer wmLayer = new PdfLayer(operation.referenceHash, stamp.getWriter());
+
+        // add as layer
+        over.beginLayer(wmLayer);
+        over.setGState(transparent); // set block transparency properties
+        over.addImage(img);
+        over.endLayer();
+    }
+
+    /**
+     * Creates the graphics state of the stamps, shared by all of them so the writer adds a single
+     * ExtGState per document.
+     */
+    private PdfGState createGState() {
+        // prepare transparency
+        PdfGState transparent = new PdfGState();
+        transparent.setAlphaIsShape(translucent);
+        if (translucent)
+            transparent.setFillOpacity(0.70F); // TADAAAAA :)))))))
+        return transparent;
+    }
+
+    /**
+     * @param currPage the page index (starting from 0)
+     * @return the over content of the page, or null if it is not available
+     */
+    private PdfContentByte getOverContent(PdfStamper stamp, int currPage) {
+        // Hint: Page Starts From --> 1 In OpenPdf Core
+        TraceSpan span = TraceSpan.begin("getOverContent");
+        try {
+            return stamp.getOverContent(currPage + 1);
+        } finally {
+            TraceSpan.end(span);
+        }
+    }
+
+    /**
+     * Adds the stamp of an operation to the stamper body: a form XObject marked with
+     * {@link PublicValue#KEY_SPECIAL_ID} that draws the cover image over its unit square.
+     * The image XObject itself is shared by every stamp with the same cover, see {@link #sharedCover}.
+     *
+     * @return the positioned image, with its direct reference set to the added form XObject
+     */
+    private Image createCover(PdfStamper stamp, AddOperation operation) throws IOException, DocumentException {
+
+        // OCG width & height
+        float OCGWidth = operation.OCGWidth;
+        float OCGHeight = operation.OCGHeight;
+        if (OCGWidth == 0 || OCGHeight == 0) {
+            OCGWidth = PublicValue.DEFAULT_OCG_WIDTH;
+            OCGHeight = PublicValue.DEFAULT_OCG_HEIGHT;
+        }
+
+        // a placeholder that only carries the position, size and link of the stamp, the cover is
+        // decoded once per document in sharedCover (each placeholder is a new image to the writer)
+        Image img = Image.getInstance(1, 1, 1, 8, new byte[1]);
+        img.setAnnotation(new Annotation(0, 0, 0, 0, operation.referenceHash));
+        img.scaleAbsolute(OCGWidth, OCGHeight);
+        img.setAbsolutePosition(operation.pointF.x, operation.pointF.y);
+
+        // the page draws the form scaled to the stamp, the form draws the image on its unit square
+        PdfDictionary xobjects = new PdfDictionary();
+        xobjects.put(COVER_NAME, sharedCover(stamp, operation));
+        PdfDictionary resources = new PdfDictionary();
+        resources.put(PdfName.XOBJECT, xobjects);
+        PdfStream form = new PdfStream(COVER_FORM_CONTENT);
+        form.put(PdfName.TYPE, PdfName.XOBJECT);
+        form.put(PdfName.SUBTYPE, PdfName.FORM);
+        form.put(PdfName.BBOX, new PdfArray(new float[]{0, 0, 1, 1}));
+        form.put(PdfName.RESOURCES, resources);
+        form.put(new PdfName(PublicValue.KEY_SPECIAL_ID), new PdfName(operation.referenceHash));
+        TraceSpan span = TraceSpan.begin("addToBody");
+        PdfIndirectObject ref;
+        try {
+            ref = stamp.getWriter().addToBody(form);
+        } finally {
+            TraceSpan.end(span);
+        }
+        // addImage only puts the direct reference in the page resources, it doesn't look at the object
+        img.setDirectReference(ref.getIndirectReference());
+        return img;
+    }
+
+    /**
+     * Gets the image XObject of a cover, adding it to the stamper body on first use.
+     * Covers are recognised by the content hash of their bytes, both among the stamps of this
+     * batch and among the stamps already on the pages the batch touches.
+     */
+    private PdfIndirectReference sharedCover(PdfStamper stamp, AddOperation operation) throws IOException, DocumentException {
+        // the transparency mask is part of the image, so translucent covers are different images
+        String id = operation.getCoverId();
+        String key = id + (translucent ? "-t" : "");
+        PdfIndirectReference cover = covers.get(key);
+        if (cover != null)
+            return cover;
+        TraceSpan span = TraceSpan.begin("Image.getInstance");
+        Image img;
+        try {
+            img = CoverCache.getInstance().getImage(id, operation.OCGCover);
+        } finally {
+            TraceSpan.end(span);
+        }
+        if (translucent)
+            img.setTransparency(new int[]{0x00, 0x10}); // TADAAAAA :)))))))
+        PdfImage stream = new PdfImage(img, "cover", null);
+        stream.put(new PdfName(PublicValue.KEY_COVER_HASH), new PdfString(key));
+        span = TraceSpan.begin("addToBody");
+        try {
+            cover = stamp.getWriter().addToBody(stream).getIndirectReference();
+        } finally {
+            TraceSpan.end(span);
+        }
+        covers.put(key, cover);
+        return cover;
+    }
+
+    /**
+     * Collects the shared cover images already used by the stamps of some pages.
+     *
+     * @param reader a reader over the document, after any removal
+     * @param pages  the page numbers (starting from 1)
+     */
+    private void findCovers(PdfReader reader, Set<Integer> pages) {
+        PdfName special = new PdfName(PublicValue.KEY_SPECIAL_ID);
+        PdfName coverHash = new PdfName(PublicValue.KEY_COVER_HASH);
+        for (int page : pages) {
+            PdfDictionary resources = reader.getPageN(page).getAsDict(PdfName.RESOURCES);
+            PdfDictionary xobjects = resources == null ? null : resources.getAsDict(PdfName.XOBJECT);
+            if (xobjects == null)
+                continue;
+            for (PdfName name : xobjects.getKeys()) {
+                PdfDictionary form = xobjects.getAsStream(name);
+                if (form == null || form.get(special) == null)
+                    continue;
+                PdfDictionary formResources = form.getAsDict(PdfName.RESOURCES);
+                PdfDictionary formXObjects = formResources == null ? null : formResources.getAsDict(PdfName.XOBJECT);
+                if (formXObjects == null)
+                    continue;
+                PdfObject ref = formXObjects.get(COVER_NAME);
+                PdfDictionary image = formXObjects.getAsStream(COVER_NAME);
+                PdfString key = image == null ? null : image.getAsString(coverHash);
+                if (key != null && ref.isIndirect())
+                    covers.put(key.toString(), (PdfIndirectReference) ref);
+            }
+        }
+    }
+
+    /**
+     * Locates the stamp of an update on its target page.
+     *
+     * @return the stamp, or null if it has to be removed and added again
+     */
+    private OCGUpdater.Stamp locate(OCGUpdater ocgUpdater, PdfReader reader, AddOperation operation) throws IOException {
+        float OCGWidth = operation.OCGWidth;
+        float OCGHeight = operation.OCGHeight;
+        if (OCGWidth == 0 || OCGHeight == 0) {
+            OCGWidth = PublicValue.DEFAULT_OCG_WIDTH;
+            OCGHeight = PublicValue.DEFAULT_OCG_HEIGHT;
+        }
+        // Hint: Page Starts From --> 1 In OpenPdf Core
+        return ocgUpdater.locate(reader, operation.currPage + 1, operation.referenceHash,
+                operation.pointF.x, operation.pointF.y, OCGWidth, OCGHeight);
+    }
+
+    /**
+     * Creates a stamper that writes back into the target.
+     * <p>
+     * In incremental mode the target is opened for append and only the update section is written,
+     * so the bytes written are proportional to the edit. The append stamper still reads and copies
+     * the whole source before the update section, so the reads stay proportional to the document.
+     * We fall back to a full rewrite when the document had to be rebuilt by the reader (append mode
+     * requires a valid xref) or when the length on disk does not match what the reader copied.
+     *
+     * @param reader      a reader over the current content of the target
+     * @param incremental true to append an incremental update section
+     */
+    private PdfStamper createStamper(PdfReader reader, boolean incremental) throws IOException, DocumentException {
+        if (incremental && !reader.isRebuilt() && target.length() == reader.getFileLength()) {
+            written = new CountingOutputStream(target.openOutputStream(true));
+            OutputStream outputStream = new IncrementalOutputStream(written, reader.getFileLength());
+            return new PdfStamper(reader, outputStream, '\0', true);
+        }
+        written = new CountingOutputStream(target.openOutputStream(false));
+        return new PdfStamper(reader, written);
+    }
+
+    /**
+     * Counts the bytes that reach the target.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class AddOperation {
+
+        final PointF pointF;
+        final int currPage;
+        final String referenceHash;
+        final byte[] OCGCover;
+        final float OCGWidth;
+        final float OCGHeight;
+        private String coverId;
+
+        AddOperation(PointF pointF, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) {
+            this(pointF, currPage, referenceHash, OCGCover, null, OCGWidth, OCGHeight);
+        }
+
+        AddOperation(PointF pointF, int currPage, String referenceHash, byte[] OCGCover, String coverId, float OCGWidth, float OCGHeight) {
+            this.pointF = pointF;
+            this.currPage = currPage;
+            this.referenceHash = referenceHash;
+            this.OCGCover = OCGCover;
+            this.coverId = coverId;
+            this.OCGWidth = OCGWidth;
+            this.OCGHeight = OCGHeight;
+        }
+
+        /**
+         * @return the content hash of the cover, computed once unless the cover was registered
+         */
+        String getCoverId() {
+            if (coverId == null)
+                coverId = PublicFunction.getContentHash(OCGCover);
+            return coverId;
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
+
+/**
+ * A PDF document that is read and written in place, either a file path or a content Uri.
+ * <p>
+ * Documents are opened in partial mode over a memory-mapped file, so only the objects that are
+ * touched are read into the heap. Writes to files are crash-safe: a full rewrite goes to a
+ * temporary file that is fsynced and then renamed over the document, and an append is fsynced on
+ * close and truncated back to the original length if it never completes. A full rewrite of a Uri
+ * is not atomic: the Uri is truncated ("rwt") and the temporary file copied into it, so if that
+ * copy fails the temporary file in the cache directory is kept as the only complete version.
+ * A target must be closed after its reader, see {@link #close()}; an output stream that was not
+ * closed by then is discarded and the document is left as it was.
+ */
+abstract class PdfTarget implements Closeable {
+
+    static PdfTarget of(String filePath) throws MagicalException {
+
+        // get file and FileOutputStream
+        if (filePath == null || filePath.isEmpty())
+            throw new MagicalException("Input file is empty");
+
+        File file = new File(filePath);
+
+        if (!file.exists())
+            throw new MagicalException("Input file does not exists");
+
+        return new FileTarget(file);
+    }
+
+    static PdfTarget of(Context context, Uri uri) throws MagicalException {
+
+        // Check file input
+        if (uri == null || uri.getPath() == null)
+            throw new MagicalException("Input file is not valid");
+
+        return new UriTarget(context, uri);
+    }
+
+    /**
+     * Opens a partial reader over the current content of the document.
+     */
+    abstract PdfReader openReader() throws IOException;
+
+    /**
+     * Opens a stream that writes the document.
+     *
+     * @param append true to append to the existing content instead of replacing it
+     */
+    abstract OutputStream openOutputStream(boolean append) throws IOException;
+
+    /**
+     * @return the length of the document in bytes, or -1 if it is unknown
+     */
+    abstract long length();
+
+    /**
+     * An output stream that can be dropped without changing the document.
+     */
+    interface Pending {
+        void discard();
+    }
+
+    private Pending pending;
+
+    /**
+     * Remembers the last opened output stream, so {@link #close()} can discard it.
+     */
+    <T extends OutputStream & Pending> T track(T outputStream) {
+        pending = outputStream;
+        return outputStream;
+    }
+
+    /**
+     * Discards an output stream that was not closed and releases what the reader needs to stay
+     * open, once the reader is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (pending != null) {
+            pending.discard();
+            pending = null;
+        }
+    }
+
+    /**
+     * Opens a partial PdfReader over a memory-mapped file.
+     */
+    static PdfReader openPartial(String path) throws IOException {
+        return new PdfReader(new RandomAccessFileOrArray(path, false, false), null);
+    }
+
+    private static class FileTarget extends PdfTarget {
+
+        private final File file;
+
+        FileTarget(File file) {
+            this.file = file;
+        }
+
+        @Override
+        PdfReader openReader() throws IOException {
+            return openPartial(file.getAbsolutePath());
+        }
+
+        @Override
+        OutputStream openOutputStream(boolean append) throws IOException {
+            if (append)
+                return track(new AppendOutputStream(new FileOutputStream(file, true), file.length()));
+            // a sibling, so the rename stays on the same file system and is atomic, with a unique
+            // name so concurrent saves of the same file don't write over each other's temp file
+            File temp = File.createTempFile("." + file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            return track(new AtomicOutputStream(temp, new AtomicOutputStream.Publisher() {
+                @Override
+                public void publish(File temp) throws IOException {
+                    if (!temp.renameTo(file))
+                        throw new IOException("Cannot replace " + file);
+                }
+            }));
+        }
+
+        @Override
+        long length() {
+            return file.length();
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath();
+        }
+    }
+
+    private static class UriTarget extends PdfTarget {
+
+        private final Context context;
+        private final Uri uri;
+        private ParcelFileDescriptor descriptor;
+
+        UriTarget(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        PdfReader openReader() throws IOException {
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null)
+                throw new IOException("Cannot open file descriptor for " + uri);
+            // a seekable descriptor is mapped through its /proc entry, it stays open until close()
+            if (descriptor.getStatSize() >= 0) {
+                try {
+                    PdfReader reader = openPartial("/proc/self/fd/" + descriptor.getFd());
+                    this.descriptor = descriptor;
+                    return reader;
+                } catch (IOException ignored) {
+                    // the entry can't always be reopened by path (FUSE, SELinux, another app's provider)
+                }
+            }
+            // pipes, sockets and descriptors that can't be mapped are read as a stream
+            descriptor.close();
+            try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+                if (inputStream == null)
+                    throw new IOException("Cannot open input stream for " + uri);
+                return new PdfReader(inputStream);
+            }
+        }
+
+        @Override
+        OutputStream openOutputStream(boolean append) throws IOException {
+            if (append)
+                return track(new AppendOutputStream(openUriOutputStream("wa"), length()));
+            // a Uri can't be renamed over, so it is only truncated once the new content is complete and synced
+            File temp = File.createTempFile("magicalpec", ".pdf", context.getCacheDir());
+            return track(new AtomicOutputStream(temp, new AtomicOutputStream.Publisher() {
+                @Override
+                public void publish(File temp) throws IOException {
+                    try (InputStream inputStream = new FileInputStream(temp);
+                         FileOutputStream outputStream = openUriOutputStream("rwt")) {
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = inputStream.read(buffer)) > 0)
+                            outputStream.write(buffer, 0, n);
+                        outputStream.flush();
+                        outputStream.getFD().sync();
+                    }
+                }
+            }));
+        }
+
+        private FileOutputStream openUriOutputStream(String mode) throws IOException {
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, mode);
+            if (descriptor == null)
+                throw new IOException("Cannot open output stream for " + uri);
+            return new ParcelFileDescriptor.AutoCloseOutputStream(descriptor);
+        }
+
+        @Override
+        long length() {
+            try (AssetFileDescriptor descriptor = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+                return descriptor == null ? -1 : descriptor.getLength();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (descriptor != null) {
+                descriptor.close();
+                descriptor = null;
+            }
+        }
+    }
+
+    /**
+     * An append that is fsynced on close, and cut back to the original length when discarded so
+     * a half written update section never stays at the end of the document.
+     */
+    private static class AppendOutputStream extends FilterOutputStream implements Pending {
+
+        private final long length;
+        private boolean closed = false;
+
+        AppendOutputStream(FileOutputStream out, long length) {
+            super(out);
+            this.length = length;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            FileOutputStream fileOutputStream = (FileOutputStream) out;
+            try {
+                fileOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+        }
+
+        @Override
+        public void discard() {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                if (length >= 0)
+                    ((FileOutputStream) out).getChannel().truncate(length);
+            } catch (IOException ignored) {
+            }
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
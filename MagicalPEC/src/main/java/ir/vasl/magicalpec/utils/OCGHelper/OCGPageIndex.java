@@ -0,0 +1,209 @@
+package ir.vasl.magicalpec.utils.OCGHelper;
+
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfString;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ir.vasl.magicalpec.utils.PublicValue;
+
+/**
+ * An index of the pages that reference each OCG, built from page dictionaries only.
+ * <p>
+ * A page references an OCG when its /Resources /Properties, the /OC entry of one of its
+ * /Resources /XObject entries or the /OC entry of one of its annotations points at it,
+ * directly or through an optional content membership dictionary. Form XObjects with their
+ * own resources are followed recursively, each form only once. Content streams are never
+ * decoded, so building the index is cheap compared to parsing the pages.
+ * The same pass collects the layer names of the stamps made by this library.
+ */
+public class OCGPageIndex {
+
+    private static final PdfName SPECIAL_ID = new PdfName(PublicValue.KEY_SPECIAL_ID);
+
+    private final Map<String, Set<Integer>> pages = new HashMap<String, Set<Integer>>();
+
+    /**
+     * The layer names of the stamps made by this library, read from {@link PublicValue#KEY_SPECIAL_ID}.
+     */
+    private final Set<String> stamps = new HashSet<String>();
+
+    /**
+     * The OCG names referenced by each form XObject (and the forms it uses), by object number.
+     */
+    private final Map<Integer, Set<String>> forms = new HashMap<Integer, Set<String>>();
+
+    /**
+     * Builds the index for every page of a document.
+     *
+     * @param reader a PdfReader containing a PDF document
+     * @return the index
+     */
+    public static OCGPageIndex build(PdfReader reader) {
+        OCGPageIndex index = new OCGPageIndex();
+        int n = reader.getNumberOfPages();
+        for (int i = 1; i <= n; i++)
+            index.addPage(i, reader.getPageN(i));
+        return index;
+    }
+
+    /**
+     * @param ocgs a set of names of OCG layers
+     * @return the sorted page numbers (starting from 1) that reference at least one of the layers
+     */
+    public Set<Integer> getPages(Set<String> ocgs) {
+        Set<Integer> result = new TreeSet<Integer>();
+        for (String ocg : ocgs) {
+            Set<Integer> referenced = pages.get(ocg);
+            if (referenced != null)
+                result.addAll(referenced);
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of all OCGs referenced by at least one page
+     */
+    public Set<String> getNames() {
+        return pages.keySet();
+    }
+
+    /**
+     * @return the layer names of all stamps made by this library, found on the pages' XObjects
+     */
+    public Set<String> getStampNames() {
+        return stamps;
+    }
+
+    /**
+     * Checks if a form XObject with its own resources references one of the layers.
+     *
+     * @param form a reference to the form XObject
+     * @param ocgs a set of names of OCG layers
+     * @return true if the form, or a form it uses, references at least one of the layers
+     */
+    public boolean formReferences(PdfIndirectReference form, Set<String> ocgs) {
+        Set<String> names = forms.get(form.getNumber());
+        if (names == null)
+            return false;
+        for (String name : names) {
+            if (ocgs.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    private void addPage(int page, PdfDictionary pageDict) {
+        Set<String> names = new HashSet<String>();
+        PdfDictionary resources = pageDict.getAsDict(PdfName.RESOURCES);
+        addResources(names, resources);
+        addStamps(resources);
+        PdfArray annots = pageDict.getAsArray(PdfName.ANNOTS);
+        if (annots != null) {
+            for (int i = 0; i < annots.size(); i++) {
+                PdfDictionary annot = annots.getAsDict(i);
+                if (annot != null)
+                    addOC(names, annot.getAsDict(PdfName.OC));
+            }
+        }
+        for (String name : names) {
+            Set<Integer> referenced = pages.get(name);
+            if (referenced == null) {
+                referenced = new TreeSet<Integer>();
+                pages.put(name, referenced);
+            }
+            referenced.add(page);
+        }
+    }
+
+    /**
+     * Adds the layer names of the stamps in the XObjects of a page.
+     */
+    private void addStamps(PdfDictionary resources) {
+        PdfDictionary xobjects = resources == null ? null : resources.getAsDict(PdfName.XOBJECT);
+        if (xobjects == null)
+            return;
+        for (PdfName name : xobjects.getKeys()) {
+            PdfDictionary xobject = xobjects.getAsStream(name);
+            PdfName layer = xobject == null ? null : xobject.getAsName(SPECIAL_ID);
+            if (layer != null)
+                stamps.add(PdfName.decodeName(layer.toString()));
+        }
+    }
+
+    /**
+     * Adds the OCGs referenced by a resources dictionary and the forms it uses.
+     */
+    private void addResources(Set<String> names, PdfDictionary resources) {
+        if (resources == null)
+            return;
+        PdfDictionary properties = resources.getAsDict(PdfName.PROPERTIES);
+        if (properties != null) {
+            for (PdfName name : properties.getKeys())
+                addOC(names, properties.getAsDict(name));
+        }
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        if (xobjects == null)
+            return;
+        for (PdfName name : xobjects.getKeys()) {
+            PdfDictionary xobject = xobjects.getAsStream(name);
+            if (xobject == null)
+                continue;
+            addOC(names, xobject.getAsDict(PdfName.OC));
+            PdfObject ref = xobjects.get(name);
+            if (PdfName.FORM.equals(xobject.getAsName(PdfName.SUBTYPE)) && ref.isIndirect())
+                names.addAll(getForm((PdfIndirectReference) ref, xobject));
+        }
+    }
+
+    /**
+     * Gets the OCGs referenced by a form XObject, indexing it on first use.
+     * A form without its own resources uses the resources of where it is drawn, which are
+     * already indexed there.
+     */
+    private Set<String> getForm(PdfIndirectReference ref, PdfDictionary form) {
+        Set<String> names = forms.get(ref.getNumber());
+        if (names != null)
+            return names;
+        PdfDictionary resources = form.getAsDict(PdfName.RESOURCES);
+        if (resources == null)
+            return Collections.emptySet();
+        names = new HashSet<String>();
+        // registered before descending, so forms drawing themselves don't loop
+        forms.put(ref.getNumber(), names);
+        addResources(names, resources);
+        return names;
+    }
+
+    /**
+     * Adds an OCG, or the OCGs of a membership dictionary.
+     */
+    private void addOC(Set<String> names, PdfDictionary oc) {
+        if (oc == null)
+            return;
+        PdfString name = oc.getAsString(PdfName.NAME);
+        if (name != null)
+            names.add(name.toString());
+        PdfObject members = PdfReader.getPdfObject(oc.get(PdfName.OCGS));
+        if (members == null)
+            return;
+        if (members.isDictionary()) {
+            addOC(names, (PdfDictionary) members);
+        } else if (members.isArray()) {
+            PdfArray array = (PdfArray) members;
+            for (int i = 0; i < array.size(); i++)
+                addOC(names, array.getAsDict(i));
+        }
+    }
+
+}
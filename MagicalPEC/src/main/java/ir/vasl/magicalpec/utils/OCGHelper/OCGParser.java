@@ -15,28 +15,36 @@ import com.lowagie.text.pdf.RandomAccessFileOrArray;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
+/**
+ * Removes the content of OCGs from content streams.
+ * <p>
+ * Thread-safety: the operator table is immutable and shared, all parse state lives in the instance.
+ * An instance must not be used by several threads at the same time, but separate instances
+ * (for example one per document) can parse concurrently.
+ */
 public class OCGParser {
 
     /**
-     * Constant used for the default operator.
+     * Handlers shared by all parsers, they are stateless.
      */
-    public static final String DEFAULTOPERATOR = "DefaultOperator";
+    private static final PdfOperator COPY_CONTENT = new CopyContentOperator();
+    private static final PdfOperator PATH_CONSTRUCTION_OR_PAINTING = new PathConstructionOrPaintingOperator();
+    private static final PdfOperator GRAPHICS = new GraphicsOperator();
+    private static final PdfOperator XOBJECT = new XObjectOperator();
+    private static final PdfOperator INLINE_IMAGE = new InlineImageOperator();
+    private static final PdfOperator TEXT = new TextOperator();
+    private static final PdfOperator BEGIN_MARKED_CONTENT = new MarkedContentOperator(MarkedContentOperator.BMC);
+    private static final PdfOperator BEGIN_MARKED_CONTENT_PROPERTIES = new MarkedContentOperator(MarkedContentOperator.BDC);
+    private static final PdfOperator END_MARKED_CONTENT = new MarkedContentOperator(MarkedContentOperator.EMC);
 
     /**
-     * A map with all supported operators operators (PDF syntax).
+     * Set by {@link #process} when the current operator has to stay in the content stream.
      */
-    protected static Map<String, PdfOperator> operators = null;
-
-    /**
-     * The OutputStream of this worker object.
-     */
-    protected static ByteArrayOutputStream baos;
+    protected boolean keep;
 
     /**
      * Keeps track of BMC/EMC balance.
@@ -54,9 +62,9 @@ public class OCGParser {
     protected Set<String> ocgs;
 
     /**
-     * The OCG properties.
+     * The names of the OCG properties (used by BDC) that need to be removed.
      */
-    protected PdfDictionary properties = null;
+    protected Set<PdfName> hidden;
 
     /**
      * Creates an instance of the OCGParser.
@@ -64,28 +72,60 @@ public class OCGParser {
      * @param ocgs a set of String values with the names of the OCGs that need to be removed.
      */
     public OCGParser(Set<String> ocgs) {
-        populateOperators();
         this.ocgs = ocgs;
     }
 
     /**
      * Parses a stream object and removes OCGs.
+     * XObjects that belong to a removed OCG are not drawn anymore, removing them from the
+     * resources is left to the caller (see OCGRemover) as resources can be shared by pages.
      *
      * @param stream    a stream object
      * @param resources the resources dictionary of that object (containing info about the OCGs)
      */
     public void parse(PRStream stream, PdfDictionary resources) throws IOException {
-        baos = new ByteArrayOutputStream();
-        properties = resources.getAsDict(PdfName.PROPERTIES);
+        prepare(resources);
+        byte[] content = PdfReader.getStreamBytes(stream);
+        byte[] result = rewrite(content);
+        if (result != content)
+            stream.setData(result);
+    }
+
+    /**
+     * Resolves which properties and XObjects of a resources dictionary belong to the OCGs that
+     * need to be removed, and starts a new content. This reads (but doesn't change) the document,
+     * so it must run on the thread that owns the PdfReader; {@link #rewrite(byte[])} can then run
+     * on any thread.
+     *
+     * @param resources the resources dictionary of the content (containing info about the OCGs)
+     */
+    public void prepare(PdfDictionary resources) {
+        mc_balance = 0;
+        hidden = new HashSet<PdfName>();
         xobj = new HashSet<PdfName>();
+        if (resources == null)
+            return;
+        PdfDictionary properties = resources.getAsDict(PdfName.PROPERTIES);
+        PdfString ocname;
+        if (properties != null) {
+            for (PdfName name : properties.getKeys()) {
+                PdfDictionary ocdict = properties.getAsDict(name);
+                if (ocdict == null)
+                    continue;
+                ocname = ocdict.getAsString(PdfName.NAME);
+                if (ocname != null && ocgs.contains(ocname.toString()))
+                    hidden.add(name);
+            }
+        }
         PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
-        PRStream xobject;
+        PdfDictionary xobject;
         PdfDictionary oc;
-        PdfString ocname;
         if (xobjects != null) {
-            // remove XObject (form or image) that belong to an OCG that needs to be removed
+            // XObject (form or image) that belong to an OCG that needs to be removed
             for (PdfName name : xobjects.getKeys()) {
-                xobject = (PRStream) xobjects.getAsStream(name);
+                xobject = xobjects.getAsStream(name);
+                if (xobject == null)
+                    continue;
                 oc = xobject.getAsDict(PdfName.OC);
                 if (oc != null) {
                     ocname = oc.getAsString(PdfName.NAME);
@@ -94,26 +134,88 @@ public class OCGParser {
                     }
                 }
             }
-            for (PdfName name : xobj) {
-                xobjects.remove(name);
-            }
         }
+    }
+
+    /**
+     * Removes the OCG content from the bytes of a content stream, using the state computed by
+     * {@link #prepare(PdfDictionary)}. This doesn't touch the document.
+     * <p>
+     * The kept operators are copied as byte ranges of the original stream, so untouched content
+     * is never re-serialized and keeps its exact formatting. Only the ranges of operators inside a
+     * removed BDC /OC ... EMC section or drawing a removed XObject are dropped. If the stream
+     * doesn't mention any removed property or XObject name it is not tokenised at all.
+     * <p>
+     * Consecutive calls continue the marked content state, so the streams of a /Contents array
+     * are rewritten one after the other, in order, after a single prepare.
+     *
+     * @param contentBytes the decoded content stream
+     * @return the new content stream, or contentBytes itself if nothing was removed
+     */
+    public byte[] rewrite(byte[] contentBytes) throws IOException {
+        if (mc_balance == 0 && !mentionsAny(contentBytes, hidden) && !mentionsAny(contentBytes, xobj))
+            return contentBytes;
+        ByteArrayOutputStream out = null;
+        int copied = 0;
         try {
             // parse the content stream
-            byte[] contentBytes = PdfReader.getStreamBytes(stream);
             PRTokeniser tokeniser = new PRTokeniser(new RandomAccessFileOrArray(contentBytes));
             PdfContentParser ps = new PdfContentParser(tokeniser);
             ArrayList<PdfObject> operands = new ArrayList<PdfObject>();
+            int start = 0;
             while (ps.parse(operands).size() > 0) {
+                int end = tokeniser.getFilePointer();
                 PdfLiteral operator = (PdfLiteral) operands.get(operands.size() - 1);
+                keep = false;
                 processOperator(this, operator, operands);
+                if (!keep) {
+                    // flush the kept range before this operator and skip the operator with its operands
+                    if (out == null)
+                        out = new ByteArrayOutputStream(contentBytes.length);
+                    out.write(contentBytes, copied, start - copied);
+                    copied = end;
+                }
+                start = end;
             }
         } catch (Exception e) {
             throw new ExceptionConverter(e);
         }
-        baos.flush();
-        baos.close();
-        stream.setData(baos.toByteArray());
+        if (out == null)
+            return contentBytes;
+        out.write(contentBytes, copied, contentBytes.length - copied);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks if a content stream contains at least one of the given names as a token.
+     */
+    private static boolean mentionsAny(byte[] content, Set<PdfName> names) {
+        for (PdfName name : names) {
+            if (indexOf(content, name.getBytes()) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds a token in content stream bytes.
+     *
+     * @param data  the content stream
+     * @param token the bytes of the token
+     * @return the index of the first occurrence followed by a whitespace, a delimiter or the end of data, or -1
+     */
+    static int indexOf(byte[] data, byte[] token) {
+        outer:
+        for (int i = 0; i <= data.length - token.length; i++) {
+            for (int j = 0; j < token.length; j++) {
+                if (data[i + j] != token[j])
+                    continue outer;
+            }
+            int next = i + token.length;
+            if (next == data.length || PRTokeniser.isWhitespace(data[next]) || PRTokeniser.isDelimiter(data[next]))
+                return i;
+        }
+        return -1;
     }
 
     /**
@@ -125,93 +227,154 @@ public class OCGParser {
      * @throws Exception
      */
     protected static void processOperator(OCGParser parser, PdfLiteral operator, List<PdfObject> operands) throws Exception {
-        PdfOperator op = operators.get(operator.toString());
-        if (op == null)
-            op = operators.get(DEFAULTOPERATOR);
-        op.process(parser, operator, operands);
+        lookup(operator.getBytes()).process(parser, operator, operands);
     }
 
     /**
-     * Populates the operators variable.
+     * Finds the handler of an operator from its raw bytes (PDF syntax), without creating a String
+     * or hashing. Unknown operators are copied as they are.
+     *
+     * @param op the bytes of the operator
+     * @return the handler
      */
-    protected void populateOperators() {
-        if (operators != null)
-            return;
-        operators = new HashMap<String, PdfOperator>();
-        operators.put(DEFAULTOPERATOR, new CopyContentOperator());
-        PathConstructionOrPaintingOperator opConstructionPainting = new PathConstructionOrPaintingOperator();
-        operators.put("m", opConstructionPainting);
-        operators.put("l", opConstructionPainting);
-        operators.put("c", opConstructionPainting);
-        operators.put("v", opConstructionPainting);
-        operators.put("y", opConstructionPainting);
-        operators.put("h", opConstructionPainting);
-        operators.put("re", opConstructionPainting);
-        operators.put("S", opConstructionPainting);
-        operators.put("s", opConstructionPainting);
-        operators.put("f", opConstructionPainting);
-        operators.put("F", opConstructionPainting);
-        operators.put("f*", opConstructionPainting);
-        operators.put("B", opConstructionPainting);
-        operators.put("B*", opConstructionPainting);
-        operators.put("b", opConstructionPainting);
-        operators.put("b*", opConstructionPainting);
-        operators.put("n", opConstructionPainting);
-        operators.put("W", opConstructionPainting);
-        operators.put("W*", opConstructionPainting);
-        GraphicsOperator graphics = new GraphicsOperator();
-        operators.put("q", graphics);
-        operators.put("Q", graphics);
-        operators.put("w", graphics);
-        operators.put("J", graphics);
-        operators.put("j", graphics);
-        operators.put("M", graphics);
-        operators.put("d", graphics);
-        operators.put("ri", graphics);
-        operators.put("i", graphics);
-        operators.put("gs", graphics);
-        operators.put("cm", graphics);
-        operators.put("g", graphics);
-        operators.put("G", graphics);
-        operators.put("rg", graphics);
-        operators.put("RG", graphics);
-        operators.put("k", graphics);
-        operators.put("K", graphics);
-        operators.put("cs", graphics);
-        operators.put("CS", graphics);
-        operators.put("sc", graphics);
-        operators.put("SC", graphics);
-        operators.put("scn", graphics);
-        operators.put("SCN", graphics);
-        operators.put("sh", graphics);
-        XObjectOperator xObject = new XObjectOperator();
-        operators.put("Do", xObject);
-        InlineImageOperator inlineImage = new InlineImageOperator();
-        operators.put("BI", inlineImage);
-        operators.put("EI", inlineImage);
-        TextOperator text = new TextOperator();
-        operators.put("BT", text);
-        operators.put("ID", text);
-        operators.put("ET", text);
-        operators.put("Tc", text);
-        operators.put("Tw", text);
-        operators.put("Tz", text);
-        operators.put("TL", text);
-        operators.put("Tf", text);
-        operators.put("Tr", text);
-        operators.put("Ts", text);
-        operators.put("Td", text);
-        operators.put("TD", text);
-        operators.put("Tm", text);
-        operators.put("T*", text);
-        operators.put("Tj", text);
-        operators.put("'", text);
-        operators.put("\"", text);
-        operators.put("TJ", text);
-        MarkedContentOperator markedContent = new MarkedContentOperator();
-        operators.put("BMC", markedContent);
-        operators.put("BDC", markedContent);
-        operators.put("EMC", markedContent);
+    protected static PdfOperator lookup(byte[] op) {
+        switch (op.length) {
+            case 1:
+                switch (op[0]) {
+                    case 'm':
+                    case 'l':
+                    case 'c':
+                    case 'v':
+                    case 'y':
+                    case 'h':
+                    case 'S':
+                    case 's':
+                    case 'f':
+                    case 'F':
+                    case 'B':
+                    case 'b':
+                    case 'n':
+                    case 'W':
+                        return PATH_CONSTRUCTION_OR_PAINTING;
+                    case 'q':
+                    case 'Q':
+                    case 'w':
+                    case 'J':
+                    case 'j':
+                    case 'M':
+                    case 'd':
+                    case 'i':
+                    case 'g':
+                    case 'G':
+                    case 'k':
+                    case 'K':
+                        return GRAPHICS;
+                    case '\'':
+                    case '"':
+                        return TEXT;
+                }
+                break;
+            case 2:
+                byte first = op[0];
+                byte second = op[1];
+                if (second == '*') {
+                    switch (first) {
+                        case 'f':
+                        case 'B':
+                        case 'b':
+                        case 'W':
+                            return PATH_CONSTRUCTION_OR_PAINTING;
+                        case 'T':
+                            return TEXT;
+                    }
+                    break;
+                }
+                switch (first) {
+                    case 'r':
+                        if (second == 'e')
+                            return PATH_CONSTRUCTION_OR_PAINTING;
+                        if (second == 'i' || second == 'g')
+                            return GRAPHICS;
+                        break;
+                    case 'g':
+                        if (second == 's')
+                            return GRAPHICS;
+                        break;
+                    case 'c':
+                        if (second == 'm' || second == 's')
+                            return GRAPHICS;
+                        break;
+                    case 's':
+                        if (second == 'c' || second == 'h')
+                            return GRAPHICS;
+                        break;
+                    case 'R':
+                        if (second == 'G')
+                            return GRAPHICS;
+                        break;
+                    case 'C':
+                        if (second == 'S')
+                            return GRAPHICS;
+                        break;
+                    case 'S':
+                        if (second == 'C')
+                            return GRAPHICS;
+                        break;
+                    case 'D':
+                        if (second == 'o')
+                            return XOBJECT;
+                        break;
+                    case 'B':
+                        if (second == 'I')
+                            return INLINE_IMAGE;
+                        if (second == 'T')
+                            return TEXT;
+                        break;
+                    case 'E':
+                        if (second == 'I')
+                            return INLINE_IMAGE;
+                        if (second == 'T')
+                            return TEXT;
+                        break;
+                    case 'I':
+                        if (second == 'D')
+                            return TEXT;
+                        break;
+                    case 'T':
+                        switch (second) {
+                            case 'c':
+                            case 'w':
+                            case 'z':
+                            case 'L':
+                            case 'f':
+                            case 'r':
+                            case 's':
+                            case 'd':
+                            case 'D':
+                            case 'm':
+                            case 'j':
+                            case 'J':
+                                return TEXT;
+                        }
+                        break;
+                }
+                break;
+            case 3:
+                if (op[0] == 's' && op[1] == 'c' && op[2] == 'n')
+                    return GRAPHICS;
+                if (op[0] == 'S' && op[1] == 'C' && op[2] == 'N')
+                    return GRAPHICS;
+                if (op[1] == 'M' && op[2] == 'C') {
+                    if (op[0] == 'B')
+                        return BEGIN_MARKED_CONTENT;
+                    if (op[0] == 'E')
+                        return END_MARKED_CONTENT;
+                }
+                if (op[0] == 'B' && op[1] == 'D' && op[2] == 'C')
+                    return BEGIN_MARKED_CONTENT_PROPERTIES;
+                break;
+        }
+        return COPY_CONTENT;
     }
 
     /**
@@ -246,15 +409,7 @@ public class OCGParser {
             mc_balance++;
             return;
         }
-        if (properties == null)
-            return;
-        PdfDictionary ocdict = properties.getAsDict(ocref);
-        if (ocdict == null)
-            return;
-        PdfString ocname = ocdict.getAsString(PdfName.NAME);
-        if (ocname == null)
-            return;
-        if (ocgs.contains(ocname.toString()))
+        if (ocref != null && hidden.contains(ocref))
             mc_balance++;
     }
 
@@ -267,7 +422,8 @@ public class OCGParser {
     }
 
     /**
-     * Processes an operator
+     * Processes an operator: keeps it unless it is eligible for removal and inside removed content.
+     * Operators that are never processed (like a Do of a removed XObject) are dropped.
      *
      * @param operator  the operator
      * @param operands  its operands
@@ -275,35 +431,7 @@ public class OCGParser {
      * @throws IOException
      */
     protected void process(PdfLiteral operator, List<PdfObject> operands, boolean removable) throws IOException {
-        if (removable && isToRemoved())
-            return;
-        operands.remove(operator);
-        for (PdfObject o : operands) {
-            printsp(o);
-        }
-        println(operator);
-    }
-
-    /**
-     * Writes a PDF object to the OutputStream, followed by a space character.
-     *
-     * @param o
-     * @throws IOException
-     */
-    protected void printsp(PdfObject o) throws IOException {
-        o.toPdf(null, baos);
-        baos.write(' ');
-    }
-
-    /**
-     * Writes a PDF object to the OutputStream, followed by a newline character.
-     *
-     * @param o
-     * @throws IOException
-     */
-    protected void println(PdfObject o) throws IOException {
-        o.toPdf(null, baos);
-        baos.write('\n');
+        keep = !(removable && isToRemoved());
     }
 
     /**
@@ -383,15 +511,25 @@ public class OCGParser {
      */
     private static class MarkedContentOperator implements PdfOperator {
 
+        static final int BMC = 0;
+        static final int BDC = 1;
+        static final int EMC = 2;
+
+        private final int kind;
+
+        MarkedContentOperator(int kind) {
+            this.kind = kind;
+        }
+
         public void process(OCGParser parser, PdfLiteral operator,
                             List<PdfObject> operands) throws IOException {
-            if ("BDC".equals(operator.toString()) && operands.size() > 1 && PdfName.OC.equals(operands.get(0))) {
+            if (kind == BDC && operands.size() > 2 && PdfName.OC.equals(operands.get(0)) && operands.get(1).isName()) {
                 parser.checkMarkedContentStart((PdfName) operands.get(1));
-            } else if ("BMC".equals(operator.toString())) {
+            } else if (kind == BMC) {
                 parser.checkMarkedContentStart(null);
             }
             parser.process(operator, operands, true);
-            if ("EMC".equals(operator.toString())) {
+            if (kind == EMC) {
                 parser.checkMarkedContentEnd();
             }
         }
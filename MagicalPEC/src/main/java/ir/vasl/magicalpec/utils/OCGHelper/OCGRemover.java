@@ -1,44 +1,137 @@
 package ir.vasl.magicalpec.utils.OCGHelper;
 
+import com.lowagie.text.ExceptionConverter;
 import com.lowagie.text.pdf.PRStream;
 import com.lowagie.text.pdf.PdfArray;
 import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfIndirectReference;
 import com.lowagie.text.pdf.PdfName;
 import com.lowagie.text.pdf.PdfObject;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStream;
 import com.lowagie.text.pdf.PdfString;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+import ir.vasl.magicalpec.utils.PublicValue;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+/**
+ * Removes OCG layers (their content, resources, annotations and catalog entries) from a document.
+ * <p>
+ * By default pages are parsed one after the other on the calling thread. With an executor the
+ * decoding, rewriting and compressing of the page content streams, which don't depend on each
+ * other, is fanned out over its threads, a bounded number of pages at a time; reading the raw
+ * streams, writing the new ones back and the catalog /OCProperties cleanup stay on the calling
+ * thread since PdfReader is not thread-safe.
+ */
 public class OCGRemover {
 
+    private static final PdfName SPECIAL_ID = new PdfName(PublicValue.KEY_SPECIAL_ID);
+
+    /** The filters decoded off the reader thread, with their abbreviations. */
+    private static final PdfName FL = new PdfName("Fl");
+    private static final PdfName AHX = new PdfName("AHx");
+    private static final PdfName A85 = new PdfName("A85");
+    private static final Set<PdfName> DECODED = new HashSet<PdfName>(Arrays.asList(
+            PdfName.FLATEDECODE, FL, PdfName.LZWDECODE, PdfName.ASCIIHEXDECODE, AHX, PdfName.ASCII85DECODE, A85));
+
+    private final ExecutorService executor;
+    private final int window;
+
+    /**
+     * Creates a remover that parses pages sequentially.
+     */
+    public OCGRemover() {
+        this(null);
+    }
+
     /**
-     * Removes layers from a PDF document
+     * Creates a remover that rewrites pages in parallel.
+     *
+     * @param executor the executor running the page rewrites (for example a ForkJoinPool), or null to parse sequentially
+     */
+    public OCGRemover(ExecutorService executor) {
+        this.executor = executor;
+        this.window = executor != null ? window(executor) : 0;
+    }
+
+    /**
+     * Removes layers from a PDF document.
+     * Only the content streams of pages that reference one of the layers (see {@link OCGPageIndex})
+     * are parsed and rewritten, the other pages only get their annotations and properties cleaned.
+     * Streams of a /Contents array are rewritten in place one by one, and form XObjects that
+     * reference a layer are descended into. A content stream or form shared by several pages is
+     * rewritten only once.
      *
      * @param reader a PdfReader containing a PDF document
      * @param layers a sequence of names of OCG layers
      * @throws IOException
      */
     public void removeLayers(PdfReader reader, String... layers) throws IOException {
+        removeLayers(reader, OCGPageIndex.build(reader), layers);
+    }
+
+    /**
+     * Removes layers from a PDF document with an index the caller already built, so the document
+     * is not scanned twice.
+     *
+     * @param reader a PdfReader containing a PDF document
+     * @param index  the OCG index of the document, built from the same reader
+     * @param layers a sequence of names of OCG layers
+     * @throws IOException
+     */
+    public void removeLayers(PdfReader reader, OCGPageIndex index, String... layers) throws IOException {
         int n = reader.getNumberOfPages();
-        for (int i = 1; i <= n; i++)
-            reader.setPageContent(i, reader.getPageContent(i));
         Set<String> ocgs = new HashSet<String>();
         for (int i = 0; i < layers.length; i++) {
             ocgs.add(layers[i]);
         }
-        OCGParser parser = new OCGParser(ocgs);
+        Set<Integer> pages = index.getPages(ocgs);
+        List<ContentGroup> groups = new ArrayList<ContentGroup>();
+        List<PdfDictionary> formResources = new ArrayList<PdfDictionary>();
+        Set<Integer> visited = new HashSet<Integer>();
+        for (int i : pages) {
+            PdfDictionary page = reader.getPageN(i);
+            PdfDictionary resources = page.getAsDict(PdfName.RESOURCES);
+            List<PRStream> streams = getContentStreams(page, visited);
+            if (!streams.isEmpty())
+                groups.add(new ContentGroup(ocgs, streams, resources));
+            addForms(groups, formResources, visited, index, resources, ocgs);
+        }
+        if (executor == null) {
+            for (ContentGroup group : groups)
+                group.apply(group.rewrite(group.read()));
+        } else {
+            parseParallel(groups);
+        }
         PdfDictionary page;
         for (int i = 1; i <= n; i++) {
             page = reader.getPageN(i);
-            parse(parser, page);
             // page.remove(PdfName.PIECEINFO); // TODO: 12/22/20 can not find PIECEINFO in pdf name :?
             removeAnnots(page, ocgs);
-            removeProperties(page, ocgs);
+            removeProperties(page.getAsDict(PdfName.RESOURCES), ocgs);
+            removeXObjects(page.getAsDict(PdfName.RESOURCES), ocgs);
+        }
+        for (PdfDictionary resources : formResources) {
+            removeProperties(resources, ocgs);
+            removeXObjects(resources, ocgs);
         }
         PdfDictionary root = reader.getCatalog();
         PdfDictionary ocproperties = root.getAsDict(PdfName.OCPROPERTIES);
@@ -61,7 +154,12 @@ public class OCGRemover {
                 }
             }
         }
-        reader.removeUnusedObjects();
+        TraceSpan span = TraceSpan.begin("removeUnusedObjects");
+        try {
+            reader.removeUnusedObjects();
+        } finally {
+            TraceSpan.end(span);
+        }
     }
 
     /**
@@ -136,13 +234,12 @@ public class OCGRemover {
     }
 
     /**
-     * Removes ocgs from a page resources
+     * Removes ocgs from a page or form resources
      *
-     * @param page a page dictionary
-     * @param ocgs a set of names of OCG layers
+     * @param resources a resources dictionary
+     * @param ocgs      a set of names of OCG layers
      */
-    private void removeProperties(PdfDictionary page, Set<String> ocgs) {
-        PdfDictionary resources = page.getAsDict(PdfName.RESOURCES);
+    private void removeProperties(PdfDictionary resources, Set<String> ocgs) {
         if (resources == null) return;
         PdfDictionary properties = resources.getAsDict(PdfName.PROPERTIES);
         if (properties == null) return;
@@ -179,16 +276,338 @@ public class OCGRemover {
     }
 
     /**
-     * Uses the OCGParser on a page
+     * Removes XObjects that belong to an OCG from a page or form resources, and the stamps made
+     * by this library for the layers (they carry {@link PublicValue#KEY_SPECIAL_ID}, not /OC)
      *
-     * @param parser the OCGParser
-     * @param page   the page dictionary of the page that needs to be parsed.
+     * @param resources a resources dictionary
+     * @param ocgs      a set of names of OCG layers
+     */
+    private void removeXObjects(PdfDictionary resources, Set<String> ocgs) {
+        if (resources == null) return;
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        if (xobjects == null) return;
+        List<PdfName> remove = new ArrayList<PdfName>();
+        PdfDictionary xobject;
+        for (PdfName name : xobjects.getKeys()) {
+            xobject = xobjects.getAsStream(name);
+            if (xobject == null)
+                continue;
+            PdfName stamp = xobject.getAsName(SPECIAL_ID);
+            if (isToBeRemoved(xobject.getAsDict(PdfName.OC), ocgs)
+                    || (stamp != null && ocgs.contains(PdfName.decodeName(stamp.toString()))))
+                remove.add(name);
+        }
+        for (PdfName name : remove) {
+            xobjects.remove(name);
+        }
+    }
+
+    /**
+     * Adds a content group for every form XObject used by a resources dictionary that references
+     * one of the layers, recursively. A form without its own resources is drawn with the resources
+     * of its parent, so it is descended into when the parent has properties or XObjects to hide.
+     *
+     * @param groups        the groups to rewrite
+     * @param formResources the resources of the visited forms, to clean after the rewrite
+     * @param visited       the object numbers of the streams already added
+     * @param index         the OCG index of the document
+     * @param resources     the resources of the page or form that draws the forms
+     * @param ocgs          a set of names of OCG layers
+     */
+    private void addForms(List<ContentGroup> groups, List<PdfDictionary> formResources, Set<Integer> visited,
+                          OCGPageIndex index, PdfDictionary resources, Set<String> ocgs) {
+        if (resources == null)
+            return;
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        if (xobjects == null)
+            return;
+        for (PdfName name : xobjects.getKeys()) {
+            PdfObject ref = xobjects.get(name);
+            PdfObject object = PdfReader.getPdfObject(ref);
+            if (ref == null || !ref.isIndirect() || !(object instanceof PRStream))
+                continue;
+            PRStream form = (PRStream) object;
+            if (!PdfName.FORM.equals(form.getAsName(PdfName.SUBTYPE)) || isToBeRemoved(form.getAsDict(PdfName.OC), ocgs))
+                continue;
+            PdfDictionary ownResources = form.getAsDict(PdfName.RESOURCES);
+            boolean references = ownResources != null
+                    ? index.formReferences((PdfIndirectReference) ref, ocgs)
+                    : mentions(resources, ocgs);
+            if (!references || !visited.add(((PdfIndirectReference) ref).getNumber()))
+                continue;
+            PdfDictionary formRes = ownResources != null ? ownResources : resources;
+            groups.add(new ContentGroup(ocgs, Collections.singletonList(form), formRes));
+            if (ownResources != null) {
+                formResources.add(ownResources);
+                addForms(groups, formResources, visited, index, ownResources, ocgs);
+            }
+        }
+    }
+
+    /**
+     * Checks if a resources dictionary has properties or XObjects that belong to the layers.
+     */
+    private boolean mentions(PdfDictionary resources, Set<String> ocgs) {
+        PdfDictionary properties = resources.getAsDict(PdfName.PROPERTIES);
+        if (properties != null) {
+            for (PdfName name : properties.getKeys()) {
+                if (isToBeRemoved(properties.getAsDict(name), ocgs))
+                    return true;
+            }
+        }
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        if (xobjects != null) {
+            for (PdfName name : xobjects.getKeys()) {
+                PdfDictionary xobject = xobjects.getAsStream(name);
+                if (xobject != null && isToBeRemoved(xobject.getAsDict(PdfName.OC), ocgs))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the content streams of a page, a single stream or the streams of a /Contents array,
+     * leaving out the ones already added for another page.
+     *
+     * @param page    a page dictionary
+     * @param visited the object numbers of the streams already added
+     * @return the content streams, in drawing order
+     */
+    private List<PRStream> getContentStreams(PdfDictionary page, Set<Integer> visited) {
+        List<PRStream> streams = new ArrayList<PRStream>();
+        PdfObject ref = page.get(PdfName.CONTENTS);
+        PdfObject contents = PdfReader.getPdfObject(ref);
+        if (contents == null)
+            return streams;
+        if (contents.isStream()) {
+            addContentStream(streams, visited, ref);
+        } else if (contents.isArray()) {
+            PdfArray array = (PdfArray) contents;
+            for (int i = 0; i < array.size(); i++)
+                addContentStream(streams, visited, array.getPdfObject(i));
+        }
+        return streams;
+    }
+
+    /**
+     * Adds a content stream unless it was added before, so a stream shared by several pages is
+     * not rewritten, and written back, once per page and by several workers at once.
+     */
+    private void addContentStream(List<PRStream> streams, Set<Integer> visited, PdfObject ref) {
+        PdfObject stream = PdfReader.getPdfObject(ref);
+        if (stream == null || !stream.isStream())
+            return;
+        if (ref.isIndirect() && !visited.add(((PdfIndirectReference) ref).getNumber()))
+            return;
+        streams.add((PRStream) stream);
+    }
+
+    /**
+     * Rewrites the content groups on the executor.
+     * The compressed stream bytes and the filters are read on this thread; decoding, the rewrite
+     * and compressing the new streams run in parallel. At most {@code window} groups are read
+     * ahead of the one being written back, so the heap holds a bounded number of streams whatever
+     * the page count.
+     *
+     * @param groups the content groups that need to be parsed
      * @throws IOException
      */
-    private void parse(OCGParser parser, PdfDictionary page) throws IOException {
-        PRStream stream = (PRStream) page.getAsStream(PdfName.CONTENTS);
-        PdfDictionary resources = page.getAsDict(PdfName.RESOURCES);
-        parser.parse(stream, resources);
+    private void parseParallel(List<ContentGroup> groups) throws IOException {
+        ArrayDeque<Future<List<byte[]>>> rewriting = new ArrayDeque<Future<List<byte[]>>>();
+        int next = 0;
+        try {
+            while (next < groups.size() && rewriting.size() < window)
+                rewriting.add(submit(groups.get(next++)));
+            for (int i = 0; i < groups.size(); i++) {
+                List<byte[]> results = rewriting.poll().get();
+                if (next < groups.size())
+                    rewriting.add(submit(groups.get(next++)));
+                groups.get(i).apply(results);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("OCG removal interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new ExceptionConverter(cause instanceof Exception ? (Exception) cause : e);
+        } finally {
+            for (Future<List<byte[]>> future : rewriting)
+                future.cancel(true);
+        }
+    }
+
+    private Future<List<byte[]>> submit(final ContentGroup group) throws IOException {
+        final List<EncodedStream> contents = group.read();
+        return executor.submit(new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws Exception {
+                return group.rewrite(contents);
+            }
+        });
+    }
+
+    /**
+     * The number of groups to keep in flight on an executor: twice its threads, so a worker
+     * always has a group waiting while the calling thread reads and writes back the others.
+     * The threads are the size of a thread pool, or the core count when the pool is unbounded
+     * or not a ThreadPoolExecutor.
+     */
+    private static int window(ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            int size = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+            if (size < Integer.MAX_VALUE)
+                return 2 * Math.max(1, size);
+        }
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * A content stream as stored in the document, with the filters to decode it. The filters and
+     * their parameters are resolved when it is read, so decoding doesn't touch the PdfReader.
+     */
+    private static class EncodedStream {
+
+        private final byte[] bytes;
+        private final List<PdfName> filters;
+        private final List<PdfObject> parameters;
+
+        private EncodedStream(byte[] bytes, List<PdfName> filters, List<PdfObject> parameters) {
+            this.bytes = bytes;
+            this.filters = filters;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Reads a stream on the thread that owns the PdfReader. Streams with a filter this class
+         * doesn't decode are decoded right away by the reader.
+         */
+        static EncodedStream read(PRStream stream) throws IOException {
+            List<PdfName> filters = new ArrayList<PdfName>();
+            List<PdfObject> parameters = new ArrayList<PdfObject>();
+            PdfObject filter = PdfReader.getPdfObject(stream.get(PdfName.FILTER));
+            PdfObject parms = PdfReader.getPdfObject(stream.get(PdfName.DECODEPARMS));
+            if (parms == null)
+                parms = PdfReader.getPdfObject(stream.get(PdfName.DP));
+            boolean supported = true;
+            for (int i = 0; filter != null && i < (filter.isArray() ? ((PdfArray) filter).size() : 1); i++) {
+                PdfObject name = filter.isArray() ? ((PdfArray) filter).getDirectObject(i) : filter;
+                PdfObject parm = parms != null && parms.isArray() ? ((PdfArray) parms).getDirectObject(i) : parms;
+                if (!(name instanceof PdfName) || !DECODED.contains(name)) {
+                    supported = false;
+                    break;
+                }
+                filters.add((PdfName) name);
+                parameters.add(parm != null && parm.isDictionary() ? resolve((PdfDictionary) parm) : null);
+            }
+            if (!supported)
+                return new EncodedStream(PdfReader.getStreamBytes(stream),
+                        Collections.<PdfName>emptyList(), Collections.<PdfObject>emptyList());
+            return new EncodedStream(PdfReader.getStreamBytesRaw(stream), filters, parameters);
+        }
+
+        private static PdfDictionary resolve(PdfDictionary parms) {
+            PdfDictionary direct = new PdfDictionary();
+            for (PdfName key : parms.getKeys())
+                direct.put(key, parms.getDirectObject(key));
+            return direct;
+        }
+
+        /**
+         * Decodes the stream, on any thread.
+         */
+        byte[] decode() {
+            byte[] b = bytes;
+            for (int i = 0; i < filters.size(); i++) {
+                PdfName filter = filters.get(i);
+                if (PdfName.FLATEDECODE.equals(filter) || FL.equals(filter))
+                    b = PdfReader.decodePredictor(PdfReader.FlateDecode(b), parameters.get(i));
+                else if (PdfName.LZWDECODE.equals(filter))
+                    b = PdfReader.decodePredictor(PdfReader.LZWDecode(b), parameters.get(i));
+                else if (PdfName.ASCIIHEXDECODE.equals(filter) || AHX.equals(filter))
+                    b = PdfReader.ASCIIHexDecode(b);
+                else
+                    b = PdfReader.ASCII85Decode(b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * The content streams drawn with one resources dictionary and one marked content state:
+     * the streams of a page /Contents array, or the stream of a form XObject.
+     */
+    private static class ContentGroup {
+
+        private final OCGParser parser;
+        private final List<PRStream> streams;
+
+        ContentGroup(Set<String> ocgs, List<PRStream> streams, PdfDictionary resources) {
+            this.parser = new OCGParser(ocgs);
+            this.parser.prepare(resources);
+            this.streams = streams;
+        }
+
+        /**
+         * Reads the encoded streams, on the thread that owns the PdfReader.
+         */
+        List<EncodedStream> read() throws IOException {
+            List<EncodedStream> contents = new ArrayList<EncodedStream>(streams.size());
+            for (PRStream stream : streams)
+                contents.add(EncodedStream.read(stream));
+            return contents;
+        }
+
+        /**
+         * Decodes and rewrites the streams in order, and compresses the ones that changed,
+         * without touching the document.
+         *
+         * @return the new compressed streams, null for the ones left untouched
+         */
+        List<byte[]> rewrite(List<EncodedStream> contents) throws IOException {
+            TraceSpan span = TraceSpan.begin("OCGParser.parse");
+            try {
+                List<byte[]> results = new ArrayList<byte[]>(contents.size());
+                for (EncodedStream content : contents) {
+                    byte[] decoded = content.decode();
+                    byte[] rewritten = parser.rewrite(decoded);
+                    results.add(rewritten == decoded ? null : deflate(rewritten));
+                }
+                return results;
+            } finally {
+                TraceSpan.end(span);
+            }
+        }
+
+        /**
+         * Writes back the streams that changed, on the thread that owns the PdfReader.
+         */
+        void apply(List<byte[]> results) {
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) == null)
+                    continue;
+                PRStream stream = streams.get(i);
+                stream.setData(results.get(i), false);
+                stream.remove(PdfName.DECODEPARMS);
+                stream.remove(PdfName.DP);
+                stream.put(PdfName.FILTER, PdfName.FLATEDECODE);
+            }
+        }
+
+        private static byte[] deflate(byte[] data) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            Deflater deflater = new Deflater(PdfStream.DEFAULT_COMPRESSION);
+            try {
+                DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater);
+                zip.write(data);
+                zip.close();
+            } finally {
+                deflater.end();
+            }
+            return out.toByteArray();
+        }
     }
 
 }
@@ -0,0 +1,269 @@
+package ir.vasl.magicalpec.utils.OCGHelper;
+
+import com.lowagie.text.DocWriter;
+import com.lowagie.text.pdf.ByteBuffer;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PRTokeniser;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfContentParser;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfString;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import ir.vasl.magicalpec.utils.PublicValue;
+
+/**
+ * Edits a stamp made by MagicalPdfCore.addOCG in place, without re-parsing the rest of the document.
+ * <p>
+ * A stamp is an XObject carrying the {@link PublicValue#KEY_SPECIAL_ID} key (a unit square form
+ * drawing a shared cover image, or the cover image itself in older documents), drawn inside the
+ * marked content of its OCG layer: {@code /OC /name BDC ... q w 0 0 h x y cm /image Do Q ... EMC}.
+ * Moving it rewrites only the {@code cm} operator of that section (and the rectangle of its link
+ * annotation); changing its cover points the page resources at a new XObject.
+ */
+public class OCGUpdater {
+
+    private static volatile Method markUsed;
+
+    /**
+     * Finds a stamp on a page and prepares its new position.
+     *
+     * @param reader a PdfReader containing a PDF document
+     * @param page   the page number (starting from 1)
+     * @param layer  the name of the OCG layer (the reference hash of the stamp)
+     * @param x      the new lower left x of the stamp
+     * @param y      the new lower left y of the stamp
+     * @param width  the new width of the stamp
+     * @param height the new height of the stamp
+     * @return the located stamp, or null if it is not on this page
+     * @throws IOException
+     */
+    public Stamp locate(PdfReader reader, int page, String layer, float x, float y, float width, float height) throws IOException {
+        PdfDictionary pageDict = reader.getPageN(page);
+        PdfDictionary resources = pageDict.getAsDict(PdfName.RESOURCES);
+        if (resources == null)
+            return null;
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        PdfDictionary properties = resources.getAsDict(PdfName.PROPERTIES);
+        if (xobjects == null || properties == null)
+            return null;
+
+        // the XObject of the stamp
+        PdfName special = new PdfName(PublicValue.KEY_SPECIAL_ID);
+        PdfName id = new PdfName(layer);
+        PdfName imageName = null;
+        for (PdfName name : xobjects.getKeys()) {
+            PdfDictionary xobject = xobjects.getAsStream(name);
+            if (xobject != null && id.equals(xobject.getAsName(special))) {
+                imageName = name;
+                break;
+            }
+        }
+        if (imageName == null)
+            return null;
+
+        // the property name used by BDC for the layer
+        PdfName propertyName = null;
+        for (PdfName name : properties.getKeys()) {
+            PdfDictionary ocg = properties.getAsDict(name);
+            if (ocg == null)
+                continue;
+            PdfString ocname = ocg.getAsString(PdfName.NAME);
+            if (ocname != null && layer.equals(ocname.toString())) {
+                propertyName = name;
+                break;
+            }
+        }
+        if (propertyName == null)
+            return null;
+
+        Stamp stamp = new Stamp();
+        stamp.page = page;
+        stamp.layer = layer;
+        stamp.imageName = imageName;
+        stamp.matrix = new float[]{width, 0, 0, height, x, y};
+
+        // stamps are appended after the page content, so look from the last stream backwards
+        PdfObject contents = pageDict.get(PdfName.CONTENTS);
+        PdfObject direct = PdfReader.getPdfObject(contents);
+        if (direct == null)
+            return null;
+        if (direct.isArray()) {
+            PdfArray array = (PdfArray) direct;
+            for (int i = array.size() - 1; i >= 0 && stamp.content == null; i--)
+                locateMatrix(stamp, array.getPdfObject(i), propertyName);
+        } else {
+            locateMatrix(stamp, contents, propertyName);
+        }
+        if (stamp.content == null)
+            return null;
+        return stamp;
+    }
+
+    /**
+     * Moves a located stamp: writes its new content stream and moves its link annotation.
+     *
+     * @param stamper the stamper writing the document, used to mark changed objects in append mode
+     * @param stamp   a stamp returned by {@link #locate}
+     */
+    public void move(PdfStamper stamper, Stamp stamp) {
+        PdfReader reader = stamper.getReader();
+        stamp.stream.setData(stamp.content);
+        markUsed(stamper, stamp.streamRef);
+
+        PdfDictionary pageDict = reader.getPageN(stamp.page);
+        PdfArray annots = pageDict.getAsArray(PdfName.ANNOTS);
+        if (annots == null)
+            return;
+        float[] m = stamp.matrix;
+        for (int i = 0; i < annots.size(); i++) {
+            PdfDictionary annot = annots.getAsDict(i);
+            if (annot == null)
+                continue;
+            PdfDictionary action = annot.getAsDict(PdfName.A);
+            if (action == null)
+                continue;
+            PdfString uri = action.getAsString(PdfName.URI);
+            if (uri != null && stamp.layer.equals(uri.toString())) {
+                annot.put(PdfName.RECT, new PdfArray(new float[]{m[4], m[5], m[4] + m[0], m[5] + m[3]}));
+                markUsed(stamper, annots.getPdfObject(i));
+                markUsed(stamper, pageDict.get(PdfName.ANNOTS));
+                markUsed(stamper, reader.getPageOrigRef(stamp.page));
+            }
+        }
+    }
+
+    /**
+     * Replaces the XObject of a stamp. The old one is released from the reader.
+     *
+     * @param stamper  the stamper writing the document
+     * @param stamp    a stamp returned by {@link #locate}
+     * @param coverRef a reference to the new XObject, already added to the stamper body
+     */
+    public void replaceCover(PdfStamper stamper, Stamp stamp, PdfIndirectReference coverRef) {
+        PdfReader reader = stamper.getReader();
+        PdfDictionary pageDict = reader.getPageN(stamp.page);
+        PdfDictionary resources = pageDict.getAsDict(PdfName.RESOURCES);
+        PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        PdfObject old = xobjects.get(stamp.imageName);
+        xobjects.put(stamp.imageName, coverRef);
+        if (old != null && old.isIndirect())
+            PdfReader.killIndirect(old);
+        markUsed(stamper, reader.getPageOrigRef(stamp.page));
+        markUsed(stamper, pageDict.get(PdfName.RESOURCES));
+        markUsed(stamper, resources.get(PdfName.XOBJECT));
+    }
+
+    /**
+     * Marks a changed object so an append mode stamper writes it in the update section.
+     * PdfStamperImp.markUsed is not public, so it is looked up once through reflection.
+     * A direct object or null is ignored, as it is by the stamper.
+     */
+    public static void markUsed(PdfStamper stamper, PdfObject object) {
+        try {
+            Method method = markUsed;
+            if (method == null) {
+                Class<?> type = stamper.getWriter().getClass();
+                while (method == null && type != null) {
+                    try {
+                        method = type.getDeclaredMethod("markUsed", PdfObject.class);
+                    } catch (NoSuchMethodException e) {
+                        type = type.getSuperclass();
+                    }
+                }
+                if (method == null)
+                    throw new NoSuchMethodException("markUsed");
+                method.setAccessible(true);
+                markUsed = method;
+            }
+            method.invoke(stamper.getWriter(), object);
+        } catch (Exception e) {
+            // an unmarked object would silently be left out of an incremental save
+            throw new IllegalStateException("Cannot mark a changed object for the update section", e);
+        }
+    }
+
+    /**
+     * Looks for the marked content of the layer in one content stream and replaces the
+     * {@code cm} operator that positions the stamp image.
+     */
+    private void locateMatrix(Stamp stamp, PdfObject ref, PdfName propertyName) throws IOException {
+        PdfObject object = PdfReader.getPdfObject(ref);
+        if (object == null || !object.isStream())
+            return;
+        PRStream stream = (PRStream) object;
+        byte[] content = PdfReader.getStreamBytes(stream);
+        if (OCGParser.indexOf(content, propertyName.getBytes()) < 0)
+            return;
+
+        PRTokeniser tokeniser = new PRTokeniser(new RandomAccessFileOrArray(content));
+        PdfContentParser ps = new PdfContentParser(tokeniser);
+        ArrayList<PdfObject> operands = new ArrayList<PdfObject>();
+        int depth = 0;
+        int start = 0;
+        int matrixStart = -1;
+        int matrixEnd = -1;
+        while (ps.parse(operands).size() > 0) {
+            int end = tokeniser.getFilePointer();
+            String operator = operands.get(operands.size() - 1).toString();
+            if (depth == 0) {
+                if ("BDC".equals(operator) && operands.size() > 2
+                        && PdfName.OC.equals(operands.get(0)) && propertyName.equals(operands.get(1)))
+                    depth = 1;
+            } else if ("BDC".equals(operator) || "BMC".equals(operator)) {
+                depth++;
+            } else if ("EMC".equals(operator)) {
+                if (--depth == 0)
+                    matrixStart = -1;
+            } else if ("cm".equals(operator)) {
+                matrixStart = start;
+                matrixEnd = end;
+            } else if ("Do".equals(operator) && operands.size() > 1 && stamp.imageName.equals(operands.get(0)) && matrixStart >= 0) {
+                stamp.stream = stream;
+                stamp.streamRef = ref;
+                stamp.content = replace(content, matrixStart, matrixEnd, stamp.matrix);
+                return;
+            }
+            start = end;
+        }
+    }
+
+    private static byte[] replace(byte[] content, int start, int end, float[] matrix) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 32);
+        out.write(content, 0, start);
+        StringBuilder cm = new StringBuilder("\n");
+        for (float value : matrix)
+            cm.append(ByteBuffer.formatDouble(value)).append(' ');
+        cm.append("cm");
+        byte[] bytes = DocWriter.getISOBytes(cm.toString());
+        out.write(bytes, 0, bytes.length);
+        out.write(content, end, content.length - end);
+        return out.toByteArray();
+    }
+
+    /**
+     * A stamp located on a page, with its new content stream ready to be written.
+     */
+    public static class Stamp {
+
+        int page;
+        String layer;
+        PdfName imageName;
+        float[] matrix;
+        PRStream stream;
+        PdfObject streamRef;
+        byte[] content;
+
+    }
+
+}
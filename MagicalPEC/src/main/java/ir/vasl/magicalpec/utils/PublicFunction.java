@@ -1,14 +1,28 @@
 package ir.vasl.magicalpec.utils;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 public class PublicFunction {
 
+    private static final int MAX_CACHED_DRAWABLES = 16;
+
+    private static final Map<String, byte[]> drawableBytes = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_CACHED_DRAWABLES;
+        }
+    };
+
     public static int getRandomNumber() {
 
         int min = 10000;
@@ -19,11 +33,44 @@ public class PublicFunction {
         return rand.nextInt((max - min) + 1) + min;
     }
 
+    /**
+     * Encodes a drawable to PNG, once per drawable and configuration: the bytes are cached, so
+     * callers must not modify them. The screen density and the night mode are part of the cache
+     * key since they pick which variant of the drawable is decoded.
+     */
     public static byte[] getByteFromDrawable(Context context, int resDrawable) {
+        Configuration configuration = context.getResources().getConfiguration();
+        String key = resDrawable + "/" + configuration.densityDpi + "/"
+                + (configuration.uiMode & Configuration.UI_MODE_NIGHT_MASK);
+        synchronized (drawableBytes) {
+            byte[] cached = drawableBytes.get(key);
+            if (cached != null)
+                return cached;
+        }
         Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), resDrawable);
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        return stream.toByteArray();
+        byte[] bytes = stream.toByteArray();
+        synchronized (drawableBytes) {
+            drawableBytes.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the SHA-1 of the bytes as a hex string, used to recognise identical covers
+     */
+    public static String getContentHash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Android version ships SHA-1
+            throw new IllegalStateException(e);
+        }
     }
 
 }
@@ -4,6 +4,9 @@ public class PublicValue {
 
     public static final String KEY_SPECIAL_ID = "ITEXT__SPECIAL_ID";
 
+    // content hash of a cover image XObject shared by the stamps that use the same cover
+    public static final String KEY_COVER_HASH = "ITEXT__COVER_HASH";
+
     public static final float DEFAULT_OCG_WIDTH = 35.0f;
     public static final float DEFAULT_OCG_HEIGHT = 35.0f;
 
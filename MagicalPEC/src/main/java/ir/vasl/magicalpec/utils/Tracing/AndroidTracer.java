@@ -0,0 +1,25 @@
+package ir.vasl.magicalpec.utils.Tracing;
+
+import android.os.Trace;
+
+/**
+ * Forwards spans to android.os.Trace, so they show up as sections in systrace and Perfetto.
+ */
+public class AndroidTracer implements Tracer {
+
+    /**
+     * Trace section names are limited to 127 characters.
+     */
+    private static final int MAX_SECTION_NAME = 127;
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name);
+    }
+
+    @Override
+    public void endSection(String name, long nanos, long allocatedBytes) {
+        Trace.endSection();
+    }
+
+}
@@ -0,0 +1,89 @@
+package ir.vasl.magicalpec.utils.Tracing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects spans in memory, for JVM unit tests and debug screens. Each span knows the span of its
+ * thread it ran in, so tests can check how the phases of an edit nest.
+ */
+public class MemoryTracer implements Tracer {
+
+    private final List<Span> spans = new ArrayList<>();
+
+    // the names of the spans open on each thread, innermost first
+    private final ThreadLocal<ArrayDeque<String>> open = new ThreadLocal<ArrayDeque<String>>() {
+        @Override
+        protected ArrayDeque<String> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    @Override
+    public void beginSection(String name) {
+        open.get().push(name);
+    }
+
+    @Override
+    public void endSection(String name, long nanos, long allocatedBytes) {
+        ArrayDeque<String> stack = open.get();
+        stack.poll();
+        Span span = new Span(name, Thread.currentThread().getName(), stack.peek(), stack.size(), nanos, allocatedBytes);
+        synchronized (this) {
+            spans.add(span);
+        }
+    }
+
+    /**
+     * @return a copy of the collected spans, in the order they ended
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * @return the total wall time of the collected spans, by name
+     */
+    public synchronized Map<String, Long> getTotalNanos() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (Span span : spans) {
+            Long total = totals.get(span.name);
+            totals.put(span.name, total == null ? span.nanos : total + span.nanos);
+        }
+        return totals;
+    }
+
+    public synchronized void clear() {
+        spans.clear();
+    }
+
+    public static class Span {
+
+        public final String name;
+        public final String thread;
+        /** The name of the span this one ran in on its thread, null for an outermost span. */
+        public final String parent;
+        /** The number of spans this one ran in on its thread, 0 for an outermost span. */
+        public final int depth;
+        public final long nanos;
+        public final long allocatedBytes;
+
+        Span(String name, String thread, String parent, int depth, long nanos, long allocatedBytes) {
+            this.name = name;
+            this.thread = thread;
+            this.parent = parent;
+            this.depth = depth;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return name + (parent == null ? "" : " in " + parent) + " [" + thread + "] " + nanos + "ns " + allocatedBytes + "B";
+        }
+    }
+
+}
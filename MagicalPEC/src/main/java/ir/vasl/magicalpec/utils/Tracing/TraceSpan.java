@@ -0,0 +1,112 @@
+package ir.vasl.magicalpec.utils.Tracing;
+
+import java.lang.reflect.Method;
+
+/**
+ * A timed span on a PDF hot path (reader construction, image decoding, parsing, writing).
+ * <p>
+ * Tracing is off until a {@link Tracer} is set. While it is off {@link #begin(String)} returns
+ * null after a single volatile read and {@link #end(TraceSpan)} ignores it, so the hooks cost
+ * nothing measurable and allocate nothing:
+ * <pre>
+ * TraceSpan span = TraceSpan.begin("PdfStamper.close");
+ * try {
+ *     stamp.close();
+ * } finally {
+ *     TraceSpan.end(span);
+ * }
+ * </pre>
+ * Allocated bytes are read from com.sun.management.ThreadMXBean on VMs that have it (desktop
+ * JVMs running unit tests), and reported as -1 on Android.
+ */
+public final class TraceSpan {
+
+    private static volatile Tracer tracer = null;
+
+    private static Object threadMXBean;
+    private static Method allocatedBytes;
+    private static volatile boolean allocationResolved = false;
+
+    private final Tracer owner;
+    private final String name;
+    private final long startNanos;
+    private final long startAllocated;
+
+    private TraceSpan(Tracer owner, String name) {
+        this.owner = owner;
+        this.name = name;
+        this.startAllocated = currentThreadAllocatedBytes();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @param tracer the tracer receiving the spans, or null (default) to turn tracing off
+     */
+    public static void setTracer(Tracer tracer) {
+        TraceSpan.tracer = tracer;
+    }
+
+    public static Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Starts a span on the current thread.
+     *
+     * @param name the name of the span
+     * @return the span, or null when tracing is off
+     */
+    public static TraceSpan begin(String name) {
+        Tracer current = tracer;
+        if (current == null)
+            return null;
+        current.beginSection(name);
+        return new TraceSpan(current, name);
+    }
+
+    /**
+     * Ends a span returned by {@link #begin(String)}, on the thread that started it.
+     *
+     * @param span the span, null when tracing was off
+     */
+    public static void end(TraceSpan span) {
+        if (span == null)
+            return;
+        long nanos = System.nanoTime() - span.startNanos;
+        long allocated = span.startAllocated < 0 ? -1 : currentThreadAllocatedBytes() - span.startAllocated;
+        span.owner.endSection(span.name, nanos, allocated);
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the VM can't tell
+     */
+    private static long currentThreadAllocatedBytes() {
+        if (!allocationResolved)
+            resolveAllocation();
+        if (allocatedBytes == null)
+            return -1;
+        try {
+            return (Long) allocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static synchronized void resolveAllocation() {
+        if (allocationResolved)
+            return;
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            // through reflection, java.lang.management is not part of the Android SDK
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            if (type.isInstance(bean)) {
+                threadMXBean = bean;
+                allocatedBytes = type.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Throwable ignored) {
+            // java.lang.management and com.sun.management don't exist on Android
+        }
+        allocationResolved = true;
+    }
+
+}
@@ -0,0 +1,27 @@
+package ir.vasl.magicalpec.utils.Tracing;
+
+/**
+ * Receives the spans timed on the PDF hot paths, see {@link TraceSpan}.
+ * <p>
+ * Both calls of a span happen on the same thread, spans of one thread are properly nested, and
+ * different threads call in parallel, so implementations must be thread-safe.
+ */
+public interface Tracer {
+
+    /**
+     * A span starts on the current thread.
+     *
+     * @param name the name of the span, e.g. "PdfStamper.close"
+     */
+    void beginSection(String name);
+
+    /**
+     * The last span started on the current thread ends.
+     *
+     * @param name           the name of the span
+     * @param nanos          the wall time of the span
+     * @param allocatedBytes the bytes allocated by the thread during the span, or -1 if the VM can't tell
+     */
+    void endSection(String name, long nanos, long allocatedBytes);
+
+}
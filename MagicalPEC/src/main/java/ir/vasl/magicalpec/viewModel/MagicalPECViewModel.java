@@ -3,13 +3,22 @@ package ir.vasl.magicalpec.viewModel;
 import android.app.Application;
 import android.graphics.PointF;
 import android.net.Uri;
-import android.os.Handler;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
 
-import ir.vasl.magicalpec.utils.Core.MagicalPdfCore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import ir.vasl.magicalpec.model.OperationResult;
+import ir.vasl.magicalpec.utils.Core.DocumentExecutor;
+import ir.vasl.magicalpec.utils.Core.MagicalPdfSession;
 import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
 
 public class MagicalPECViewModel extends AndroidViewModel {
@@ -17,17 +26,44 @@ public class MagicalPECViewModel extends AndroidViewModel {
     public enum PECCoreStatusEnum {IDLE, PROCESSING, FAILED, SUCCESS}
 
     private MutableLiveData<PECCoreStatusEnum> pecCoreStatus;
+    private MutableLiveData<OperationResult> operationResult;
+    private DocumentExecutor documentExecutor;
+    private final Map<String, List<PendingEdit>> pendingEdits = new HashMap<>();
+    private final Set<MagicalPdfSession> openedSessions = new HashSet<>();
 
     public MagicalPECViewModel(@NonNull Application application) {
         super(application);
         this.pecCoreStatus = new MutableLiveData<>();
         this.pecCoreStatus.postValue(PECCoreStatusEnum.IDLE);
+        this.operationResult = new MutableLiveData<>();
+        this.documentExecutor = new DocumentExecutor();
     }
 
     public MutableLiveData<PECCoreStatusEnum> getPecCoreStatus() {
         return pecCoreStatus;
     }
 
+    /**
+     * @return the phase times, byte counts, pages touched and failure cause of each commit
+     */
+    public MutableLiveData<OperationResult> getOperationResult() {
+        return operationResult;
+    }
+
+    /**
+     * Runs the operations of this ViewModel on an injected pool instead of its own one.
+     * Call it before queuing operations, the ones already queued are cancelled.
+     *
+     * @param executor the pool running the PDF operations
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.documentExecutor.shutdown();
+        this.documentExecutor = new DocumentExecutor(executor);
+        synchronized (pendingEdits) {
+            pendingEdits.clear();
+        }
+    }
+
     public void addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover) {
         addOCG(pointF, filePath, currPage, referenceHash, OCGCover, 0, 0);
     }
@@ -37,119 +73,230 @@ public class MagicalPECViewModel extends AndroidViewModel {
     }
 
     public void addOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) {
-
-        MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
-
-        new Handler().post(new Runnable() {
+        enqueue(fileSession(filePath), new SessionOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfCore.getInstance().addOCG(pointF, filePath, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
-                } catch (MagicalException e) {
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.addOCG(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight);
             }
         });
     }
 
     public void addOCG(PointF pointF, Uri uri, int currPage, String referenceHash, byte[] OCGCover, float OCGWidth, float OCGHeight) {
-
-        MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
-
-        new Handler().post(new Runnable() {
+        enqueue(uriSession(uri), new SessionOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfCore.getInstance().addOCG(getApplication(), pointF, uri, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
-                } catch (MagicalException e) {
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.addOCG(pointF, currPage, referenceHash, OCGCover, OCGWidth, OCGHeight);
             }
         });
     }
 
     public void removeOCG(String filePath, String referenceHash) {
-
-        MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
-
-        new Handler().post(new Runnable() {
+        enqueue(fileSession(filePath), new SessionOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfCore.getInstance().removeOCG(filePath, referenceHash);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
-                } catch (MagicalException e) {
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.removeOCG(referenceHash);
             }
         });
     }
 
     public void removeOCG(Uri uri, String referenceHash) {
+        enqueue(uriSession(uri), new SessionOperation() {
+            @Override
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.removeOCG(referenceHash);
+            }
+        });
+    }
 
-        MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
-
-        new Handler().post(new Runnable() {
+    public void removeAllOCGs(String filePath) {
+        enqueue(fileSession(filePath), new SessionOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfCore.getInstance().removeOCG(getApplication(), uri, referenceHash);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
-                } catch (MagicalException e) {
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.removeAllOCGs();
             }
         });
     }
 
-    public void removeAllOCGs() {
-        // under construction
+    public void removeAllOCGs(Uri uri) {
+        enqueue(uriSession(uri), new SessionOperation() {
+            @Override
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.removeAllOCGs();
+            }
+        });
     }
 
     public void updateOCG(PointF pointF, String filePath, int currPage, String referenceHash, byte[] newOCGCover) {
-        MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
-
-        new Handler().post(new Runnable() {
+        enqueue(fileSession(filePath), new SessionOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfCore.getInstance().updateOCG(pointF, filePath, currPage, referenceHash, newOCGCover);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
-                } catch (MagicalException e) {
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.updateOCG(pointF, currPage, referenceHash, newOCGCover);
             }
         });
     }
 
     public void updateOCG(PointF pointF, Uri uri, int currPage, String referenceHash, byte[] newOCGCover) {
+        enqueue(uriSession(uri), new SessionOperation() {
+            @Override
+            public void apply(MagicalPdfSession session) throws MagicalException {
+                session.updateOCG(pointF, currPage, referenceHash, newOCGCover);
+            }
+        });
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        // pending edits are dropped, a running one is interrupted and leaves its document untouched
+        documentExecutor.shutdown();
+        synchronized (pendingEdits) {
+            pendingEdits.clear();
+        }
+        // an interrupted flush may leave edits in a session, whose debounced save would still write them
+        synchronized (openedSessions) {
+            for (MagicalPdfSession session : openedSessions)
+                session.discardLater();
+            openedSessions.clear();
+        }
+    }
+
+    /**
+     * Adds an operation to the pending edits of a document.
+     * <p>
+     * Edits wait in a per-document queue until the executor gets to that document, then all of
+     * them are applied to the document's {@link MagicalPdfSession}, which validates them against
+     * its cached reader, and written with a single save. The session collapses them: add,
+     * update, update becomes one add at the final position, add then remove becomes nothing.
+     * An edit that fails validation is reported and the others are still written. Edits made
+     * while a save runs go to the next one. The status is posted from the worker thread.
+     * <p>
+     * The queue is keyed by the canonical identity of the document, so edits of one file made
+     * through its path and through its file Uri never run at the same time. They go to two
+     * sessions though, which are saved one after the other in the order of the edits. A content
+     * Uri is keyed by its string, since resolving its file would open it on the main thread.
+     */
+    private void enqueue(SessionFactory factory, SessionOperation operation) {
+
         MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.PROCESSING);
 
-        new Handler().post(new Runnable() {
+        final String document = factory.document;
+        synchronized (pendingEdits) {
+            List<PendingEdit> edits = pendingEdits.get(document);
+            if (edits != null) {
+                // a flush of this document is already queued and will pick it up
+                edits.add(new PendingEdit(factory, operation));
+                return;
+            }
+            edits = new ArrayList<>();
+            edits.add(new PendingEdit(factory, operation));
+            pendingEdits.put(document, edits);
+        }
+
+        documentExecutor.submit(document, new Runnable() {
             @Override
             public void run() {
-                // Code here will run in UI thread
+                // Code here will run in a background thread
+                List<PendingEdit> edits;
+                synchronized (pendingEdits) {
+                    edits = pendingEdits.remove(document);
+                }
+                MagicalException error = null;
+                OperationResult result = null;
+                MagicalPdfSession session = null;
                 try {
-                    MagicalPdfCore.getInstance().updateOCG(getApplication(), pointF, uri, currPage, referenceHash, newOCGCover);
-                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
+                    for (PendingEdit edit : edits) {
+                        MagicalPdfSession editSession = edit.factory.open();
+                        synchronized (openedSessions) {
+                            openedSessions.add(editSession);
+                        }
+                        if (editSession != session) {
+                            // the previous edits went through the other target of the same file
+                            if (session != null)
+                                result = save(session, result);
+                            session = editSession;
+                        }
+                        try {
+                            edit.operation.apply(session);
+                        } catch (MagicalException e) {
+                            if (error == null)
+                                error = e;
+                        }
+                    }
+                    if (session != null)
+                        result = save(session, result);
                 } catch (MagicalException e) {
+                    error = e;
+                }
+                if (error == null) {
+                    MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.SUCCESS);
+                } else {
                     MagicalPECViewModel.this.pecCoreStatus.postValue(PECCoreStatusEnum.FAILED);
-                    e.printStackTrace();
+                    if (result == null || result.getCause() == null)
+                        result = OperationResult.failed(document, error);
                 }
+                if (result != null)
+                    MagicalPECViewModel.this.operationResult.postValue(result);
             }
         });
     }
 
+    /**
+     * Saves a session.
+     *
+     * @param result the result of an earlier save of the same flush, or null
+     * @return the result of this save, or the earlier one if the edits collapsed into nothing
+     */
+    private static OperationResult save(MagicalPdfSession session, OperationResult result) throws MagicalException {
+        boolean writing = session.hasPendingEdits();
+        session.save();
+        return writing ? session.getLastResult() : result;
+    }
+
+    private SessionFactory fileSession(String filePath) {
+        return new SessionFactory(DocumentExecutor.documentKey(filePath)) {
+            @Override
+            MagicalPdfSession open() throws MagicalException {
+                return MagicalPdfSession.open(filePath);
+            }
+        };
+    }
+
+    private SessionFactory uriSession(Uri uri) {
+        return new SessionFactory(DocumentExecutor.documentKey(uri)) {
+            @Override
+            MagicalPdfSession open() throws MagicalException {
+                return MagicalPdfSession.open(getApplication(), uri);
+            }
+        };
+    }
+
+    /**
+     * Opens the session of a document, and knows the key of its queue.
+     */
+    private abstract static class SessionFactory {
+
+        final String document;
+
+        SessionFactory(String document) {
+            this.document = document;
+        }
+
+        abstract MagicalPdfSession open() throws MagicalException;
+    }
+
+    private interface SessionOperation {
+        void apply(MagicalPdfSession session) throws MagicalException;
+    }
+
+    private static class PendingEdit {
+
+        final SessionFactory factory;
+        final SessionOperation operation;
+
+        PendingEdit(SessionFactory factory, SessionOperation operation) {
+            this.factory = factory;
+            this.operation = operation;
+        }
+    }
+
 }
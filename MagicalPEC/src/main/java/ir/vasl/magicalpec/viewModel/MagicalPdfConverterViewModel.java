@@ -2,12 +2,17 @@ package ir.vasl.magicalpec.viewModel;
 
 import android.app.Application;
 import android.net.Uri;
-import android.os.Handler;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import ir.vasl.magicalpec.model.ConversionOptions;
+import ir.vasl.magicalpec.utils.Core.ConversionListener;
+import ir.vasl.magicalpec.utils.Core.DocumentExecutor;
 import ir.vasl.magicalpec.utils.Core.MagicalPdfConverter;
 import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
 
@@ -17,14 +22,18 @@ public class MagicalPdfConverterViewModel extends AndroidViewModel {
 
     private MutableLiveData<PdfConverterStatusEnum> pdfConverterStatus;
     private MutableLiveData<String> savePdfDestinationLiveData;
+    private MutableLiveData<Integer> conversionProgress;
+    private DocumentExecutor documentExecutor;
 
     public MagicalPdfConverterViewModel(@NonNull Application application) {
         super(application);
         this.pdfConverterStatus = new MutableLiveData<>();
         this.savePdfDestinationLiveData = new MutableLiveData<>();
+        this.conversionProgress = new MutableLiveData<>();
 
         this.pdfConverterStatus.postValue(PdfConverterStatusEnum.IDLE);
         this.savePdfDestinationLiveData.postValue(null);
+        this.documentExecutor = new DocumentExecutor();
     }
 
     public MutableLiveData<PdfConverterStatusEnum> getPdfConverterStatus() {
@@ -35,34 +44,80 @@ public class MagicalPdfConverterViewModel extends AndroidViewModel {
         return savePdfDestinationLiveData;
     }
 
-    public void convertImageToPdf(String savePdfDestination, Uri uriImage) {
-        pdfConverterStatus.postValue(PdfConverterStatusEnum.PROCESSING);
+    /**
+     * @return the number of pages written so far by the running multi-image conversion
+     */
+    public MutableLiveData<Integer> getConversionProgress() {
+        return conversionProgress;
+    }
 
-        new Handler().post(new Runnable() {
+    /**
+     * Runs the conversions of this ViewModel on an injected pool instead of its own one.
+     * Call it before queuing conversions, the ones already queued are cancelled.
+     *
+     * @param executor the pool running the conversions
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.documentExecutor.shutdown();
+        this.documentExecutor = new DocumentExecutor(executor);
+    }
+
+    public void convertImageToPdf(String savePdfDestination, Uri uriImage) {
+        execute(savePdfDestination, new ConverterOperation() {
             @Override
-            public void run() {
-                // Code here will run in UI thread
-                try {
-                    MagicalPdfConverter.getInstance().convertImageIntoPDF(getApplication(), savePdfDestination, uriImage);
-                    pdfConverterStatus.postValue(PdfConverterStatusEnum.SUCCESS);
-                    savePdfDestinationLiveData.postValue(savePdfDestination);
-                } catch (MagicalException e) {
-                    pdfConverterStatus.postValue(PdfConverterStatusEnum.FAILED);
-                    e.printStackTrace();
-                }
+            public void run() throws MagicalException {
+                MagicalPdfConverter.getInstance().convertImageIntoPDF(getApplication(), savePdfDestination, uriImage);
             }
         });
     }
 
     public void convertImageToPdf(String savePdfDestination, String imagePath) {
+        execute(savePdfDestination, new ConverterOperation() {
+            @Override
+            public void run() throws MagicalException {
+                MagicalPdfConverter.getInstance().convertImageIntoPDF(getApplication(), savePdfDestination, imagePath);
+            }
+        });
+    }
+
+    public void convertImagesToPdf(String savePdfDestination, List<Uri> uriImages) {
+        convertImagesToPdf(savePdfDestination, uriImages, new ConversionOptions());
+    }
+
+    public void convertImagesToPdf(String savePdfDestination, List<Uri> uriImages, ConversionOptions options) {
+        execute(savePdfDestination, new ConverterOperation() {
+            @Override
+            public void run() throws MagicalException {
+                MagicalPdfConverter.getInstance().convertImagesIntoPDF(getApplication(), savePdfDestination, uriImages, options, new ConversionListener() {
+                    @Override
+                    public void onPageConverted(int page, int pageCount) {
+                        conversionProgress.postValue(page);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        // pending conversions are dropped, a running one is interrupted
+        documentExecutor.shutdown();
+    }
+
+    /**
+     * Queues a conversion on the background executor, serialised with the other conversions into
+     * the same destination. The status is posted from the worker thread.
+     */
+    private void execute(String savePdfDestination, ConverterOperation operation) {
         pdfConverterStatus.postValue(PdfConverterStatusEnum.PROCESSING);
 
-        new Handler().post(new Runnable() {
+        documentExecutor.submit(DocumentExecutor.documentKey(savePdfDestination), new Runnable() {
             @Override
             public void run() {
-                // Code here will run in UI thread
+                // Code here will run in a background thread
                 try {
-                    MagicalPdfConverter.getInstance().convertImageIntoPDF(getApplication(), savePdfDestination, imagePath);
+                    operation.run();
                     pdfConverterStatus.postValue(PdfConverterStatusEnum.SUCCESS);
                     savePdfDestinationLiveData.postValue(savePdfDestination);
                 } catch (MagicalException e) {
@@ -73,4 +128,8 @@ public class MagicalPdfConverterViewModel extends AndroidViewModel {
         });
     }
 
+    private interface ConverterOperation {
+        void run() throws MagicalException;
+    }
+
 }
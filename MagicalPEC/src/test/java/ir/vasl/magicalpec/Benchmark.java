@@ -0,0 +1,25 @@
+package ir.vasl.magicalpec;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * Gates the benchmarks among the unit tests. They are skipped unless the build runs with
+ * -Pbenchmark=true (see build.gradle), and report their timings instead of asserting on them,
+ * since the machines running the tests differ too much.
+ */
+public final class Benchmark {
+
+    private Benchmark() {
+    }
+
+    public static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark=true", Boolean.getBoolean("magicalpec.benchmark"));
+    }
+
+    public static void report(String name, long nanos) {
+        System.out.println(String.format(Locale.US, "%s: %.1f ms", name, nanos / 1e6));
+    }
+
+}
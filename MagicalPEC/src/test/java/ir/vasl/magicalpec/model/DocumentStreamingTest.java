@@ -0,0 +1,87 @@
+package ir.vasl.magicalpec.model;
+
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfWriter;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Converts 1,000 pages, flushing the writer on every new page. The images add up to far more
+ * than the heap this test runs with (see its task in build.gradle), so the conversion only
+ * completes if every page leaves the heap once the next one starts.
+ */
+public class DocumentStreamingTest {
+
+    private static final int PAGES = 1000;
+    private static final int SIZE = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void convertsThousandPagesInBoundedHeap() throws Exception {
+        long raw = (long) PAGES * SIZE * SIZE * 3;
+        assumeTrue("the images must not fit the heap", raw > Runtime.getRuntime().maxMemory());
+
+        File file = folder.newFile("streamed.pdf");
+        Document document = new Document();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            document.setFlushOnNewPage(PdfWriter.getInstance(document, out));
+            assertTrue(document.isFlushOnNewPage());
+            document.open();
+            long flushed = 0;
+            for (int page = 0; page < PAGES; page++) {
+                if (page > 0) {
+                    document.newPage();
+                    // the completed page reached the file
+                    assertTrue("page " + page + " was not flushed", file.length() > flushed);
+                    flushed = file.length();
+                }
+                Image image = image(page);
+                image.scaleToFit(document.right() - document.left(), document.top() - document.bottom());
+                document.add(image);
+            }
+            document.close();
+        } finally {
+            out.close();
+        }
+
+        PdfReader reader = new PdfReader(new RandomAccessFileOrArray(file.getPath(), false, true), null);
+        try {
+            assertEquals(PAGES, reader.getNumberOfPages());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A raw RGB image, 750 KB on the heap, that deflates to a few KB in the file.
+     */
+    private static Image image(int seed) throws Exception {
+        byte[] data = new byte[SIZE * SIZE * 3];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int i = (y * SIZE + x) * 3;
+                data[i] = (byte) (x + seed);
+                data[i + 1] = (byte) y;
+                data[i + 2] = (byte) seed;
+            }
+        }
+        return Image.getInstance(SIZE, SIZE, 3, 8, data);
+    }
+
+}
@@ -0,0 +1,130 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ir.vasl.magicalpec.Benchmark;
+import ir.vasl.magicalpec.model.Placement;
+import ir.vasl.magicalpec.utils.Tracing.MemoryTracer;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stamps one cover at 1, 100 and 10,000 placements spread over the pages of a document, which
+ * must take one write, one decode of the cover and one over content per page whatever the count.
+ */
+public class AddOCGsTest {
+
+    private static final int PAGES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void removeTracer() {
+        TraceSpan.setTracer(null);
+    }
+
+    @Test
+    public void stampsOnePlacement() throws Exception {
+        assertSinglePass(1);
+    }
+
+    @Test
+    public void stampsHundredPlacements() throws Exception {
+        assertSinglePass(100);
+    }
+
+    @Test
+    public void stampsTenThousandPlacements() throws Exception {
+        assertSinglePass(10000);
+    }
+
+    /**
+     * Times bulk stamping against a loop of addOCG, which rewrites the document for every stamp.
+     */
+    @Test
+    public void benchmarkAgainstAddOCGLoop() throws Exception {
+        Benchmark.assumeEnabled();
+        byte[] cover = TestDocuments.cover(0);
+        for (int count : new int[]{1, 100, 10000}) {
+            File file = TestDocuments.create(folder.newFile(), PAGES, false);
+            long started = System.nanoTime();
+            MagicalPdfCore.getInstance().addOCGs(file.getPath(), cover, placements(count));
+            Benchmark.report("addOCGs, " + count + " placements", System.nanoTime() - started);
+        }
+        for (int count : new int[]{1, 100}) {
+            File file = TestDocuments.create(folder.newFile(), PAGES, false);
+            long started = System.nanoTime();
+            for (Placement placement : placements(count))
+                MagicalPdfCore.getInstance().addOCG(placement.getPointF(), file.getPath(), placement.getCurrPage(),
+                        placement.getReferenceHash(), cover);
+            Benchmark.report("addOCG loop, " + count + " placements", System.nanoTime() - started);
+        }
+    }
+
+    private void assertSinglePass(int count) throws Exception {
+        File file = TestDocuments.create(folder.newFile(), PAGES, false);
+        MemoryTracer tracer = new MemoryTracer();
+        TraceSpan.setTracer(tracer);
+        assertTrue(MagicalPdfCore.getInstance().addOCGs(file.getPath(), TestDocuments.cover(0), placements(count)));
+        TraceSpan.setTracer(null);
+
+        assertEquals(1, count(tracer, "PdfStamper.close"));
+        assertEquals(1, count(tracer, "Image.getInstance"));
+        assertEquals(Math.min(count, PAGES), count(tracer, "getOverContent"));
+        assertEquals(count, TestDocuments.layerNames(file).size());
+        assertEquals(1, imageCount(file));
+    }
+
+    /**
+     * @return placements going round the pages, each at its own position
+     */
+    private static List<Placement> placements(int count) {
+        List<Placement> placements = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            placements.add(new Placement(TestDocuments.point(i % 50 * 10, i / 50 % 70 * 10), i % PAGES, "stamp-" + i));
+        return placements;
+    }
+
+    private static int count(MemoryTracer tracer, String name) {
+        int count = 0;
+        for (MemoryTracer.Span span : tracer.getSpans())
+            if (span.name.equals(name))
+                count++;
+        return count;
+    }
+
+    /**
+     * @return the number of image XObjects in the document
+     */
+    private static int imageCount(File file) throws Exception {
+        PdfReader reader = new PdfReader(file.getPath());
+        try {
+            int images = 0;
+            for (int i = 1; i < reader.getXrefSize(); i++) {
+                PdfObject object = reader.getPdfObject(i);
+                if (object != null && object.isStream()
+                        && PdfName.IMAGE.equals(((PdfDictionary) object).getAsName(PdfName.SUBTYPE)))
+                    images++;
+            }
+            return images;
+        } finally {
+            reader.close();
+        }
+    }
+
+}
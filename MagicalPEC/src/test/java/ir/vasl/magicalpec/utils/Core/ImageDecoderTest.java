@@ -0,0 +1,196 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfBoolean;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+
+import ir.vasl.magicalpec.model.ConversionOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resamples and rotates images as the {@link ConversionOptions} ask, and renders the CCITT group 4
+ * images of the bilevel conversion mode through the TIFF reader of the JDK, the way a pdf reader
+ * decodes them.
+ */
+public class ImageDecoderTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+    private static final int BLACK = 0xFF000000;
+    private static final int WHITE = 0xFFFFFFFF;
+
+    // an A4 page within the default margins, in points
+    private static final float FIT_WIDTH = 523;
+    private static final float FIT_HEIGHT = 770;
+
+    @Test
+    public void resamplesToTheTargetDpiOnThePage() {
+        ImageDecoder decoder = new ImageDecoder(new ConversionOptions().setMaxPixels(0), FIT_WIDTH, FIT_HEIGHT);
+        // a 4000 px wide photo fitted in 523 pt is 523 / 72 inches wide, 200 dpi of it is 1453 px
+        assertEquals(FIT_WIDTH / 72 * 200 / 4000, decoder.getScale(4000, 3000), 1e-6);
+        // fitted by its height
+        assertEquals(FIT_HEIGHT / 72 * 200 / 3000, decoder.getScale(1000, 3000), 1e-6);
+        assertTrue(decoder.getScale(600, 800) > 1);
+    }
+
+    @Test
+    public void resamplesToThePixelBudget() {
+        ConversionOptions options = new ConversionOptions().setTargetDpi(0).setMaxPixels(1000000);
+        ImageDecoder decoder = new ImageDecoder(options, FIT_WIDTH, FIT_HEIGHT);
+        assertEquals(Math.sqrt(0.1), decoder.getScale(4000, 2500), 1e-6);
+        assertTrue(decoder.getScale(1000, 1000) >= 1);
+
+        // the smaller of the two bounds wins
+        options.setTargetDpi(300);
+        assertEquals(Math.sqrt(0.1), decoder.getScale(4000, 2500), 1e-6);
+        options.setTargetDpi(50);
+        assertEquals(FIT_WIDTH / 72 * 50 / 4000, decoder.getScale(4000, 2500), 1e-6);
+    }
+
+    @Test
+    public void passthroughTurnsJpegsUprightFromTheirExifOrientation() throws Exception {
+        byte[] jpeg = TestDocuments.jpeg(40, 30);
+        // EXIF turns clockwise, the image matrix counterclockwise
+        assertEquals(0, rotation(jpeg, 1), 1e-3);
+        assertEquals(Math.PI, rotation(jpeg, 3), 1e-3);
+        assertEquals(Math.PI * 3 / 2, rotation(jpeg, 6), 1e-3);
+        assertEquals(Math.PI / 2, rotation(jpeg, 8), 1e-3);
+        // mirrored orientations need a decode
+        for (int orientation : new int[]{2, 4, 5, 7})
+            assertNull(ImageDecoder.passthrough(TestDocuments.withOrientation(jpeg, orientation, false), orientation));
+    }
+
+    @Test
+    public void embedsOnlyJpegsAndPngsWithoutDecoding() throws Exception {
+        assertTrue(ImageDecoder.isEmbeddable(TestDocuments.jpeg(40, 30)));
+        assertTrue(ImageDecoder.isEmbeddable(TestDocuments.cover(0)));
+        byte[] webp = {'R', 'I', 'F', 'F', 0x24, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P', '8', ' '};
+        assertFalse(ImageDecoder.isEmbeddable(webp));
+        byte[] heic = {0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c', 0, 0, 0, 0};
+        assertFalse(ImageDecoder.isEmbeddable(heic));
+        assertFalse(ImageDecoder.isEmbeddable(new byte[0]));
+    }
+
+    private static double rotation(byte[] jpeg, int orientation) throws Exception {
+        Image image = ImageDecoder.passthrough(TestDocuments.withOrientation(jpeg, orientation, false), orientation);
+        assertNotNull(image);
+        double radians = image.getImageRotation() % (Math.PI * 2);
+        return radians < 0 ? radians + Math.PI * 2 : radians;
+    }
+
+    @Test
+    public void bilevelImageRendersBlackOnWhite() throws Exception {
+        // a black 8 x 8 square in the top left corner of a white image
+        int rowBytes = (WIDTH + 7) / 8;
+        byte[] bits = new byte[rowBytes * HEIGHT];
+        for (int y = 0; y < 8; y++)
+            bits[y * rowBytes] = (byte) 0xFF;
+
+        BufferedImage rendered = render(embed(ImageDecoder.createBilevel(bits, WIDTH, HEIGHT)));
+
+        assertEquals(WIDTH, rendered.getWidth());
+        assertEquals(HEIGHT, rendered.getHeight());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = x < 8 && y < 8 ? BLACK : WHITE;
+                assertEquals("pixel " + x + "," + y, expected, rendered.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Writes an image into a one page pdf and returns the image stream read back from it.
+     */
+    private static PRStream embed(Image image) throws Exception {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter.getInstance(document, pdf);
+        document.open();
+        document.add(image);
+        document.close();
+
+        PdfReader reader = new PdfReader(pdf.toByteArray());
+        PdfDictionary xobjects = reader.getPageN(1).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+        for (PdfName name : xobjects.getKeys()) {
+            PdfObject object = PdfReader.getPdfObject(xobjects.get(name));
+            if (object.isStream() && PdfName.IMAGE.equals(((PdfDictionary) object).getAsName(PdfName.SUBTYPE)))
+                return (PRStream) object;
+        }
+        throw new AssertionError("no image on the page");
+    }
+
+    /**
+     * Decodes a CCITTFaxDecode image as a pdf reader does: black runs are 0 (black in DeviceGray),
+     * unless /BlackIs1 is true.
+     */
+    private static BufferedImage render(PRStream stream) throws Exception {
+        assertEquals(PdfName.CCITTFAXDECODE, stream.getAsName(PdfName.FILTER));
+        PdfDictionary parms = stream.getAsDict(PdfName.DECODEPARMS);
+        assertEquals(-1, parms.getAsNumber(PdfName.K).intValue());
+        PdfBoolean blackIs1 = parms.getAsBoolean(PdfName.BLACKIS1);
+        PdfNumber width = stream.getAsNumber(PdfName.WIDTH);
+        PdfNumber height = stream.getAsNumber(PdfName.HEIGHT);
+
+        // TIFF WhiteIsZero shows black runs black, BlackIsZero shows them white
+        int photometric = blackIs1 != null && blackIs1.booleanValue() ? 1 : 0;
+        byte[] tiff = tiff(PdfReader.getStreamBytesRaw(stream), width.intValue(), height.intValue(), photometric);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(tiff));
+        assertNotNull("the TIFF reader can't decode the image", image);
+        return image;
+    }
+
+    /**
+     * Wraps a group 4 strip into a one strip little endian TIFF.
+     */
+    private static byte[] tiff(byte[] g4, int width, int height, int photometric) {
+        int entries = 9;
+        int ifdLength = 2 + entries * 12 + 4;
+        int dataOffset = 8 + ifdLength;
+        ByteBuffer buffer = ByteBuffer.allocate(dataOffset + g4.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        buffer.putShort((short) entries);
+        entry(buffer, 256, 3, width);
+        entry(buffer, 257, 3, height);
+        entry(buffer, 258, 3, 1);
+        entry(buffer, 259, 3, 4);
+        entry(buffer, 262, 3, photometric);
+        entry(buffer, 273, 4, dataOffset);
+        entry(buffer, 277, 3, 1);
+        entry(buffer, 278, 3, height);
+        entry(buffer, 279, 4, g4.length);
+        buffer.putInt(0);
+        buffer.put(g4);
+        return buffer.array();
+    }
+
+    private static void entry(ByteBuffer buffer, int tag, int type, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(1);
+        if (type == 3)
+            buffer.putShort((short) value).putShort((short) 0);
+        else
+            buffer.putInt(value);
+    }
+
+}
@@ -0,0 +1,204 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import ir.vasl.magicalpec.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the conversion pipeline with loaders finishing out of order, a slow writer and failing
+ * loads.
+ */
+public class ImagePipelineTest {
+
+    private static final int THREADS = 4;
+    private static final int WINDOW = THREADS * 2;
+
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesImagesInPageOrder() throws Exception {
+        int count = 50;
+        final Image[] images = new Image[count];
+        for (int i = 0; i < count; i++)
+            images[i] = Image.getInstance(1, 1, 1, 8, new byte[]{(byte) i});
+        final Random random = new Random(count);
+        final List<Integer> written = new ArrayList<>();
+
+        new ImagePipeline(executor, WINDOW).run(count, new ImagePipeline.Loader() {
+            @Override
+            public Image load(int index) throws Exception {
+                // later pages often finish first
+                Thread.sleep(random.nextInt(5));
+                return images[index];
+            }
+        }, new ImagePipeline.Writer() {
+            @Override
+            public void write(int index, Image image) {
+                assertSame(images[index], image);
+                written.add(index);
+            }
+        });
+
+        assertEquals(count, written.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(i, (int) written.get(i));
+    }
+
+    @Test
+    public void slowWriterHoldsTheLoadersBack() throws Exception {
+        int count = 40;
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger ahead = new AtomicInteger();
+
+        new ImagePipeline(executor, WINDOW).run(count, new ImagePipeline.Loader() {
+            @Override
+            public Image load(int index) throws Exception {
+                started.incrementAndGet();
+                return Image.getInstance(1, 1, 1, 8, new byte[1]);
+            }
+        }, new ImagePipeline.Writer() {
+            @Override
+            public void write(int index, Image image) throws Exception {
+                Thread.sleep(2);
+                // the pages written, this one and the window are all that may have been loaded
+                ahead.set(Math.max(ahead.get(), started.get() - index - 1));
+            }
+        });
+
+        assertEquals(count, started.get());
+        assertTrue(ahead.get() + " images loaded ahead", ahead.get() <= WINDOW);
+    }
+
+    @Test
+    public void failedLoadStopsThePipeline() throws Exception {
+        final AtomicInteger written = new AtomicInteger();
+        try {
+            new ImagePipeline(executor, WINDOW).run(100, new ImagePipeline.Loader() {
+                @Override
+                public Image load(int index) throws Exception {
+                    if (index == 3)
+                        throw new IOException("unreadable image 3");
+                    return Image.getInstance(1, 1, 1, 8, new byte[1]);
+                }
+            }, new ImagePipeline.Writer() {
+                @Override
+                public void write(int index, Image image) {
+                    written.incrementAndGet();
+                }
+            });
+            fail("the failure of the loader is not thrown");
+        } catch (IOException e) {
+            assertEquals("unreadable image 3", e.getMessage());
+        }
+        assertEquals(3, written.get());
+    }
+
+    /**
+     * Times a conversion of 200 photos into one writer, decoded and downscaled by 1, 2, 4... workers
+     * up to the number of cores.
+     */
+    @Test
+    public void benchmarkDecodeThreads() throws Exception {
+        Benchmark.assumeEnabled();
+        final byte[] photo = photo();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ExecutorService workers = Executors.newFixedThreadPool(threads);
+            try {
+                long started = System.nanoTime();
+                convert(workers, threads * 2, 200, photo);
+                Benchmark.report("200 photos, " + threads + " decode threads", System.nanoTime() - started);
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    private static void convert(ExecutorService workers, int window, int count, final byte[] photo) throws Exception {
+        final Document document = new Document();
+        PdfWriter.getInstance(document, new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        document.open();
+        new ImagePipeline(workers, window).run(count, new ImagePipeline.Loader() {
+            @Override
+            public Image load(int index) throws Exception {
+                // decode and halve, as the converter does for a photo above the target dpi
+                BufferedImage source = ImageIO.read(new ByteArrayInputStream(photo));
+                BufferedImage scaled = new BufferedImage(source.getWidth() / 2, source.getHeight() / 2, BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = scaled.createGraphics();
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(source, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+                graphics.dispose();
+                ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+                ImageIO.write(scaled, "jpg", jpeg);
+                return Image.getInstance(jpeg.toByteArray());
+            }
+        }, new ImagePipeline.Writer() {
+            @Override
+            public void write(int index, Image image) throws Exception {
+                image.scaleToFit(document.right() - document.left(), document.top() - document.bottom());
+                document.newPage();
+                document.add(image);
+            }
+        });
+        document.close();
+    }
+
+    /**
+     * @return a 2000 x 1500 JPEG with some detail
+     */
+    private static byte[] photo() throws Exception {
+        BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, (x * 7 ^ y * 13) & 0xFFFFFF);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+
+}
@@ -0,0 +1,80 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adds stamps through {@link MagicalPdfCore} in incremental mode and reads the appended update
+ * section back.
+ */
+public class IncrementalSaveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MagicalPdfCore.SaveModeEnum saveMode;
+
+    @Before
+    public void setIncremental() {
+        saveMode = MagicalPdfCore.getInstance().getSaveMode();
+        MagicalPdfCore.getInstance().setSaveMode(MagicalPdfCore.SaveModeEnum.INCREMENTAL);
+    }
+
+    @After
+    public void restoreSaveMode() {
+        MagicalPdfCore.getInstance().setSaveMode(saveMode);
+    }
+
+    @Test
+    public void appendsNewLayerToDocumentWithoutLayers() throws Exception {
+        File file = TestDocuments.create(folder.newFile(), 3, false);
+        byte[] original = Files.readAllBytes(file.toPath());
+
+        assertTrue(MagicalPdfCore.getInstance().edit(file.getPath())
+                .addOCG(TestDocuments.point(100, 100), 1, "stamp-a", TestDocuments.cover(0))
+                .commit());
+
+        assertAppended(original, Files.readAllBytes(file.toPath()));
+        assertEquals(new HashSet<>(Arrays.asList("stamp-a")), TestDocuments.layerNames(file));
+    }
+
+    @Test
+    public void appendsNewLayerNextToExistingOnes() throws Exception {
+        File file = TestDocuments.create(folder.newFile(), 3, true);
+        byte[] original = Files.readAllBytes(file.toPath());
+
+        assertTrue(MagicalPdfCore.getInstance().edit(file.getPath())
+                .addOCG(TestDocuments.point(100, 100), 0, "stamp-a", TestDocuments.cover(0))
+                .addOCG(TestDocuments.point(200, 200), 2, "stamp-b", TestDocuments.cover(0))
+                .commit());
+
+        assertAppended(original, Files.readAllBytes(file.toPath()));
+        assertEquals(new HashSet<>(Arrays.asList("existing", "stamp-a", "stamp-b")), TestDocuments.layerNames(file));
+    }
+
+    /**
+     * Checks that the file is the original document followed by an update section.
+     */
+    private static void assertAppended(byte[] original, byte[] saved) throws Exception {
+        assertTrue("nothing was appended", saved.length > original.length);
+        assertArrayEquals("the original bytes changed", original, Arrays.copyOf(saved, original.length));
+        String section = new String(saved, original.length, saved.length - original.length, "ISO-8859-1");
+        assertTrue(section, section.contains("xref"));
+        assertTrue(section, section.contains("trailer"));
+        assertTrue(section, section.contains("/Prev"));
+        assertTrue(section, section.trim().endsWith("%%EOF"));
+    }
+
+}
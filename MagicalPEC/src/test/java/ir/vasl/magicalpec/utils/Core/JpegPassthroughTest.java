@@ -0,0 +1,113 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import ir.vasl.magicalpec.model.ConversionOptions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Embeds jpegs in passthrough mode, which must write their original bytes as a DCTDecode stream.
+ */
+public class JpegPassthroughTest {
+
+    private final ImageDecoder decoder = new ImageDecoder(new ConversionOptions().setJpegPassthrough(true), 523, 770);
+
+    @Test
+    public void detectsBaselineAndProgressiveJpegs() throws Exception {
+        assertTrue(ImageDecoder.isDctJpeg(TestDocuments.jpeg(40, 30)));
+        assertTrue(ImageDecoder.isDctJpeg(progressiveJpeg(40, 30)));
+        assertTrue(ImageDecoder.isDctJpeg(TestDocuments.withOrientation(TestDocuments.jpeg(40, 30), 6, false)));
+    }
+
+    @Test
+    public void rejectsJpegsAPdfReaderCantDecode() throws Exception {
+        // SOI then a lossless (SOF3) frame header
+        byte[] lossless = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC3, 0, 11, 8, 0, 30, 0, 40, 1, 1, 0x11, 0};
+        assertFalse(ImageDecoder.isDctJpeg(lossless));
+        assertFalse(ImageDecoder.isDctJpeg(TestDocuments.cover(0)));
+        assertFalse(ImageDecoder.isDctJpeg(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+    }
+
+    @Test
+    public void readsTheExifOrientationInBothByteOrders() throws Exception {
+        byte[] jpeg = TestDocuments.jpeg(40, 30);
+        assertEquals(0, ImageDecoder.getExifOrientation(jpeg));
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            assertEquals(orientation, ImageDecoder.getExifOrientation(TestDocuments.withOrientation(jpeg, orientation, false)));
+            assertEquals(orientation, ImageDecoder.getExifOrientation(TestDocuments.withOrientation(jpeg, orientation, true)));
+        }
+    }
+
+    @Test
+    public void embedsTheOriginalBytes() throws Exception {
+        byte[] jpeg = TestDocuments.withOrientation(progressiveJpeg(4000, 3000), 6, true);
+
+        // larger than the target dpi asks, still not resampled
+        PRStream stream = embed(decoder.decode(jpeg));
+
+        assertEquals(PdfName.DCTDECODE, stream.getAsName(PdfName.FILTER));
+        assertEquals(4000, stream.getAsNumber(PdfName.WIDTH).intValue());
+        assertArrayEquals(jpeg, PdfReader.getStreamBytesRaw(stream));
+    }
+
+    private static byte[] progressiveJpeg(int width, int height) throws Exception {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageOutputStream output = ImageIO.createImageOutputStream(jpeg);
+        try {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), null, null), param);
+        } finally {
+            output.close();
+            writer.dispose();
+        }
+        return jpeg.toByteArray();
+    }
+
+    /**
+     * Writes an image into a one page pdf and returns the image stream read back from it.
+     */
+    private static PRStream embed(Image image) throws Exception {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter.getInstance(document, pdf);
+        document.open();
+        image.scaleToFit(523, 770);
+        document.add(image);
+        document.close();
+
+        PdfReader reader = new PdfReader(pdf.toByteArray());
+        PdfDictionary xobjects = reader.getPageN(1).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+        for (PdfName name : xobjects.getKeys()) {
+            PdfObject object = PdfReader.getPdfObject(xobjects.get(name));
+            if (object.isStream() && PdfName.IMAGE.equals(((PdfDictionary) object).getAsName(PdfName.SUBTYPE)))
+                return (PRStream) object;
+        }
+        throw new AssertionError("no image on the page");
+    }
+
+}
@@ -0,0 +1,104 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ir.vasl.magicalpec.model.ConversionOptions;
+import ir.vasl.magicalpec.utils.Exceptions.MagicalException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Converts several jpegs into one pdf. They are embedded as they are, so the conversion runs
+ * without the platform decoder.
+ */
+public class MagicalPdfConverterTest {
+
+    private static final int PAGES = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ConversionOptions options = new ConversionOptions().setJpegPassthrough(true);
+
+    @Test
+    public void writesAPagePerImageInOrder() throws Exception {
+        File file = new File(folder.getRoot(), "out/images.pdf");
+        final List<String> progress = new ArrayList<>();
+
+        new MagicalPdfConverter().convertImages(file.getPath(), PAGES, new MagicalPdfConverter.ImageSource() {
+            @Override
+            public byte[] read(int index) throws Exception {
+                return TestDocuments.jpeg(100 + index, 80);
+            }
+        }, options, new ConversionListener() {
+            @Override
+            public void onPageConverted(int page, int pageCount) {
+                progress.add(page + "/" + pageCount);
+            }
+        });
+
+        List<String> expected = new ArrayList<>();
+        for (int page = 1; page <= PAGES; page++)
+            expected.add(page + "/" + PAGES);
+        assertEquals(expected, progress);
+
+        PdfReader reader = new PdfReader(file.getPath());
+        try {
+            assertEquals(PAGES, reader.getNumberOfPages());
+            for (int page = 1; page <= PAGES; page++) {
+                PdfDictionary image = image(reader, page);
+                assertEquals(100 + page - 1, image.getAsNumber(PdfName.WIDTH).intValue());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void failedImageDeletesThePartialFile() throws Exception {
+        File file = new File(folder.getRoot(), "failed.pdf");
+        try {
+            new MagicalPdfConverter().convertImages(file.getPath(), PAGES, new MagicalPdfConverter.ImageSource() {
+                @Override
+                public byte[] read(int index) throws Exception {
+                    if (index == 2)
+                        throw new IOException("unreadable image");
+                    return TestDocuments.jpeg(100, 80);
+                }
+            }, options, null);
+            fail("the conversion of an unreadable image succeeded");
+        } catch (MagicalException e) {
+            assertEquals("unreadable image", e.getMessage());
+        }
+        assertFalse(file.exists());
+    }
+
+    /**
+     * @return the only image XObject of a page
+     */
+    private static PdfDictionary image(PdfReader reader, int page) {
+        PdfDictionary xobjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+        assertNotNull(xobjects);
+        assertEquals(1, xobjects.size());
+        PdfObject object = PdfReader.getPdfObject(xobjects.get(xobjects.getKeys().iterator().next()));
+        PdfDictionary image = (PdfDictionary) object;
+        assertEquals(PdfName.IMAGE, image.getAsName(PdfName.SUBTYPE));
+        return image;
+    }
+
+}
@@ -0,0 +1,91 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ir.vasl.magicalpec.utils.Tracing.MemoryTracer;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commits a batch that removes a layer and adds one with a {@link MemoryTracer} installed, and
+ * checks the spans of its phases and of the hot paths inside them.
+ */
+public class OcgBatchTracingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void removeTracer() {
+        TraceSpan.setTracer(null);
+    }
+
+    @Test
+    public void commitPhasesNestInTheCommit() throws Exception {
+        File file = TestDocuments.create(folder.newFile(), 3, false);
+        MagicalPdfCore core = MagicalPdfCore.getInstance();
+        byte[] cover = TestDocuments.cover(0);
+        assertTrue(core.edit(file.getPath())
+                .addOCG(TestDocuments.point(100, 100), 0, "stamp-a", cover)
+                .addOCG(TestDocuments.point(100, 100), 1, "stamp-b", cover)
+                .commit());
+
+        MemoryTracer tracer = new MemoryTracer();
+        TraceSpan.setTracer(tracer);
+        assertTrue(core.edit(file.getPath())
+                .removeOCG("stamp-a")
+                .addOCG(TestDocuments.point(200, 200), 2, "stamp-c", TestDocuments.cover(0xFF0000))
+                .commit());
+        TraceSpan.setTracer(null);
+        List<MemoryTracer.Span> spans = tracer.getSpans();
+
+        // the phases end in order, inside the commit, which ends last
+        MemoryTracer.Span commit = spans.get(spans.size() - 1);
+        assertEquals("OcgBatch.commit", commit.name);
+        assertNull(commit.parent);
+        assertEquals(0, commit.depth);
+        assertEquals(Arrays.asList("OcgBatch.read", "OcgBatch.locate", "OcgBatch.write"), childrenOf(spans, "OcgBatch.commit"));
+
+        assertEquals(Arrays.asList("PdfReader"), childrenOf(spans, "OcgBatch.read"));
+        // the removal runs while the stamper is open, the covers are added after it
+        List<String> write = childrenOf(spans, "OcgBatch.write");
+        assertEquals("OcgBatch.remove", write.get(0));
+        assertEquals("PdfStamper.close", write.get(write.size() - 1));
+        assertTrue(write.toString(), write.contains("getOverContent"));
+        assertTrue(write.toString(), write.contains("Image.getInstance"));
+        assertTrue(write.toString(), write.contains("addToBody"));
+
+        List<String> remove = childrenOf(spans, "OcgBatch.remove");
+        assertFalse(remove.isEmpty());
+        for (String name : remove.subList(0, remove.size() - 1))
+            assertEquals("OCGParser.parse", name);
+        assertEquals("removeUnusedObjects", remove.get(remove.size() - 1));
+        for (MemoryTracer.Span span : spans)
+            if (span.name.equals("OCGParser.parse"))
+                assertEquals(3, span.depth);
+    }
+
+    /**
+     * @return the names of the spans that ran directly in a span, in the order they ended
+     */
+    private static List<String> childrenOf(List<MemoryTracer.Span> spans, String parent) {
+        List<String> children = new ArrayList<>();
+        for (MemoryTracer.Span span : spans)
+            if (parent.equals(span.parent))
+                children.add(span.name);
+        return children;
+    }
+
+}
@@ -0,0 +1,183 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.Random;
+
+import ir.vasl.magicalpec.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Opens and edits a document of large images through the partial reader of {@link PdfTarget},
+ * counting the bytes allocated on the heap against the length of the file.
+ */
+public class PartialReaderTest {
+
+    private static final int PAGES = 16;
+    private static final int SIZE = 800;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MagicalPdfCore.SaveModeEnum saveMode;
+
+    @Before
+    public void createDocument() throws Exception {
+        file = folder.newFile("large.pdf");
+        Document document = new Document();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            PdfWriter.getInstance(document, out);
+            document.open();
+            Random random = new Random(PAGES);
+            for (int page = 0; page < PAGES; page++) {
+                document.newPage();
+                // noise doesn't deflate, so each page adds about 2 MB to the file
+                byte[] data = new byte[SIZE * SIZE * 3];
+                random.nextBytes(data);
+                Image image = Image.getInstance(SIZE, SIZE, 3, 8, data);
+                image.scaleToFit(document.right() - document.left(), document.top() - document.bottom());
+                document.add(image);
+            }
+            document.close();
+        } finally {
+            out.close();
+        }
+        saveMode = MagicalPdfCore.getInstance().getSaveMode();
+    }
+
+    @After
+    public void restoreSaveMode() {
+        MagicalPdfCore.getInstance().setSaveMode(saveMode);
+    }
+
+    @Test
+    public void openingReadsOnlyTheObjectsTouched() throws Exception {
+        assumeTrue("the VM can't count allocated bytes", allocatedBytes() >= 0);
+
+        // the first reader of the VM also loads the classes of the parser
+        PdfTarget.of(file.getPath()).openReader().close();
+        long before = allocatedBytes();
+        PdfReader reader = PdfTarget.of(file.getPath()).openReader();
+        try {
+            assertEquals(PAGES, reader.getNumberOfPages());
+            reader.getPageN(PAGES);
+        } finally {
+            reader.close();
+        }
+        long partial = allocatedBytes() - before;
+
+        // a reader over a stream, as the core used before, holds the whole file
+        before = allocatedBytes();
+        reader = new PdfReader(new FileInputStream(file));
+        reader.close();
+        long full = allocatedBytes() - before;
+
+        assertTrue(full + " bytes for a full reader", full > file.length());
+        assertTrue(partial + " bytes for a partial reader", partial < file.length() / 16);
+    }
+
+    @Test
+    public void incrementalEditReadsOnlyTheObjectsTouched() throws Exception {
+        assumeTrue("the VM can't count allocated bytes", allocatedBytes() >= 0);
+        MagicalPdfCore.getInstance().setSaveMode(MagicalPdfCore.SaveModeEnum.INCREMENTAL);
+        byte[] cover = TestDocuments.cover(0);
+
+        // the first edit of the VM also loads the classes of the writer
+        assertTrue(MagicalPdfCore.getInstance().addOCG(TestDocuments.point(100, 100), file.getPath(), 0, "stamp-a", cover));
+        long before = allocatedBytes();
+        assertTrue(MagicalPdfCore.getInstance().addOCG(TestDocuments.point(100, 100), file.getPath(), PAGES - 1, "stamp-b", cover));
+        long allocated = allocatedBytes() - before;
+
+        assertTrue(allocated + " bytes for an edit", allocated < file.length() / 16);
+    }
+
+    /**
+     * Reports the peak heap of opening the document with a full and a partial reader, and of
+     * editing it in both save modes.
+     */
+    @Test
+    public void benchmarkPeakHeap() throws Exception {
+        Benchmark.assumeEnabled();
+        byte[] cover = TestDocuments.cover(0);
+        report("file", file.length());
+
+        resetPeak();
+        PdfReader reader = new PdfReader(new FileInputStream(file));
+        report("full reader", peak());
+        reader.close();
+        reader = null;
+
+        resetPeak();
+        reader = PdfTarget.of(file.getPath()).openReader();
+        reader.getPageN(PAGES);
+        report("partial reader", peak());
+        reader.close();
+        reader = null;
+
+        MagicalPdfCore.getInstance().setSaveMode(MagicalPdfCore.SaveModeEnum.FULL_REWRITE);
+        resetPeak();
+        MagicalPdfCore.getInstance().addOCG(TestDocuments.point(100, 100), file.getPath(), 0, "stamp-a", cover);
+        report("full rewrite edit", peak());
+
+        MagicalPdfCore.getInstance().setSaveMode(MagicalPdfCore.SaveModeEnum.INCREMENTAL);
+        resetPeak();
+        MagicalPdfCore.getInstance().addOCG(TestDocuments.point(100, 100), file.getPath(), 1, "stamp-b", cover);
+        report("incremental edit", peak());
+    }
+
+    private static void resetPeak() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    /**
+     * @return the sum of the peaks of the heap pools, an upper bound of the peak heap
+     */
+    private static long peak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static void report(String name, long bytes) {
+        System.out.println(String.format(Locale.US, "%s: %.1f MB", name, bytes / 1048576.0));
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the VM can't tell
+     */
+    private static long allocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
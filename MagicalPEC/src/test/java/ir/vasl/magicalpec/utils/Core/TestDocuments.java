@@ -0,0 +1,136 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import android.graphics.PointF;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfLayer;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfString;
+import com.lowagie.text.pdf.PdfWriter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Documents, images and points for the tests of the core.
+ */
+final class TestDocuments {
+
+    private TestDocuments() {
+    }
+
+    /**
+     * Writes a document with one paragraph per page.
+     *
+     * @param withLayer true to draw a rectangle in an "existing" layer on every page
+     */
+    static File create(File file, int pages, boolean withLayer) throws Exception {
+        Document document = new Document();
+        PdfWriter writer = PdfWriter.getInstance(document, new FileOutputStream(file));
+        document.open();
+        PdfLayer layer = withLayer ? new PdfLayer("existing", writer) : null;
+        for (int page = 0; page < pages; page++) {
+            document.newPage();
+            document.add(new Paragraph("Page " + page));
+            if (layer != null) {
+                PdfContentByte cb = writer.getDirectContent();
+                cb.beginLayer(layer);
+                cb.rectangle(10, 10, 20, 20);
+                cb.fill();
+                cb.endLayer();
+            }
+        }
+        document.close();
+        return file;
+    }
+
+    /**
+     * @return the names of the layers listed in /OCProperties /OCGs of the catalog
+     */
+    static Set<String> layerNames(File file) throws Exception {
+        PdfReader reader = new PdfReader(file.getPath());
+        try {
+            PdfDictionary ocproperties = reader.getCatalog().getAsDict(PdfName.OCPROPERTIES);
+            assertNotNull("the catalog has no /OCProperties", ocproperties);
+            PdfArray ocgs = ocproperties.getAsArray(PdfName.OCGS);
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < ocgs.size(); i++) {
+                PdfString name = ocgs.getAsDict(i).getAsString(PdfName.NAME);
+                names.add(name.toUnicodeString());
+            }
+            return names;
+        } finally {
+            reader.close();
+        }
+    }
+
+    static PointF point(float x, float y) {
+        // the fields, not the constructor, so the test runs against the stubbed android.jar too
+        PointF point = new PointF();
+        point.x = x;
+        point.y = y;
+        return point;
+    }
+
+    /**
+     * @return an 8 x 8 PNG of a single color
+     */
+    static byte[] cover(int rgb) throws Exception {
+        BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 8; y++)
+            for (int x = 0; x < 8; x++)
+                image.setRGB(x, y, rgb);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * @return a baseline jpeg of a single color
+     */
+    static byte[] jpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+
+    /**
+     * Inserts an EXIF APP1 segment with an orientation right after the start of a jpeg.
+     *
+     * @param littleEndian the byte order of the TIFF data, both are found in camera files
+     */
+    static byte[] withOrientation(byte[] jpeg, int orientation, boolean littleEndian) {
+        ByteOrder order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        // TIFF header, an IFD0 of one entry, no next IFD
+        ByteBuffer tiff = ByteBuffer.allocate(8 + 2 + 12 + 4).order(order);
+        tiff.put((byte) (littleEndian ? 'I' : 'M')).put((byte) (littleEndian ? 'I' : 'M')).putShort((short) 42).putInt(8);
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(0);
+        int length = 2 + 6 + tiff.capacity();
+        ByteBuffer app1 = ByteBuffer.allocate(jpeg.length + 2 + length);
+        app1.put(jpeg, 0, 2);
+        app1.put((byte) 0xFF).put((byte) 0xE1).putShort((short) length);
+        app1.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        app1.put(tiff.array());
+        app1.put(jpeg, 2, jpeg.length - 2);
+        return app1.array();
+    }
+
+}
@@ -0,0 +1,124 @@
+package ir.vasl.magicalpec.utils.Core;
+
+import com.lowagie.text.pdf.PdfReader;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import ir.vasl.magicalpec.Benchmark;
+import ir.vasl.magicalpec.utils.Tracing.MemoryTracer;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Updates stamps that stay on their page, which edits them in place instead of removing the
+ * layer from every page and adding it again.
+ */
+public class UpdateOcgTest {
+
+    private static final int PAGES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void removeTracer() {
+        TraceSpan.setTracer(null);
+    }
+
+    @Test
+    public void updateOnTheSamePageMovesTheStampInPlace() throws Exception {
+        File file = TestDocuments.create(folder.newFile(), 3, false);
+        MagicalPdfCore core = MagicalPdfCore.getInstance();
+        assertTrue(core.addOCG(TestDocuments.point(100, 150), file.getPath(), 1, "stamp-a", TestDocuments.cover(0)));
+
+        MemoryTracer tracer = new MemoryTracer();
+        TraceSpan.setTracer(tracer);
+        assertTrue(core.updateOCG(TestDocuments.point(210, 320), file.getPath(), 1, "stamp-a", TestDocuments.cover(0xFF0000)));
+        TraceSpan.setTracer(null);
+
+        // one write, and no removal pass tokenising the pages
+        assertEquals(1, count(tracer.getSpans(), "PdfStamper.close"));
+        assertEquals(0, count(tracer.getSpans(), "OCGParser.parse"));
+
+        assertEquals(new HashSet<>(Arrays.asList("stamp-a")), TestDocuments.layerNames(file));
+        String content = pageContent(file, 2);
+        assertTrue(content, content.contains(" 210 320 cm"));
+        assertFalse(content, content.contains(" 100 150 cm"));
+    }
+
+    @Test
+    public void updateToAnotherPageMovesTheLayer() throws Exception {
+        File file = TestDocuments.create(folder.newFile(), 3, false);
+        MagicalPdfCore core = MagicalPdfCore.getInstance();
+        assertTrue(core.addOCG(TestDocuments.point(100, 150), file.getPath(), 0, "stamp-a", TestDocuments.cover(0)));
+
+        assertTrue(core.updateOCG(TestDocuments.point(210, 320), file.getPath(), 2, "stamp-a", TestDocuments.cover(0)));
+
+        assertEquals(new HashSet<>(Arrays.asList("stamp-a")), TestDocuments.layerNames(file));
+        // the removal keeps the graphics state operators of the old stamp, but not its drawing
+        String first = pageContent(file, 1);
+        assertFalse(first, first.contains(" Do"));
+        assertFalse(first, first.contains("BDC"));
+        String last = pageContent(file, 3);
+        assertTrue(last, last.contains(" 210 320 cm"));
+        assertTrue(last, last.contains(" Do"));
+    }
+
+    /**
+     * Times updates in place against the removal and addition they replace, on a document with
+     * a stamp on every page.
+     */
+    @Test
+    public void benchmarkUpdateAgainstRemoveAndAdd() throws Exception {
+        Benchmark.assumeEnabled();
+        File file = TestDocuments.create(folder.newFile(), PAGES, false);
+        MagicalPdfCore core = MagicalPdfCore.getInstance();
+        byte[] cover = TestDocuments.cover(0);
+        OcgBatch batch = core.edit(file.getPath());
+        for (int page = 0; page < PAGES; page++)
+            batch.addOCG(TestDocuments.point(100, 100), page, "stamp-" + page, cover);
+        assertTrue(batch.commit());
+
+        int rounds = 10;
+        long started = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            core.updateOCG(TestDocuments.point(100 + i, 100), file.getPath(), PAGES / 2, "stamp-" + PAGES / 2, cover);
+        Benchmark.report("updateOCG in place, " + PAGES + " pages", (System.nanoTime() - started) / rounds);
+
+        started = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            core.removeOCG(file.getPath(), "stamp-" + PAGES / 2);
+            core.addOCG(TestDocuments.point(100 + i, 100), file.getPath(), PAGES / 2, "stamp-" + PAGES / 2, cover);
+        }
+        Benchmark.report("removeOCG + addOCG, " + PAGES + " pages", (System.nanoTime() - started) / rounds);
+    }
+
+    private static int count(List<MemoryTracer.Span> spans, String name) {
+        int count = 0;
+        for (MemoryTracer.Span span : spans)
+            if (span.name.equals(name))
+                count++;
+        return count;
+    }
+
+    private static String pageContent(File file, int page) throws Exception {
+        PdfReader reader = new PdfReader(file.getPath());
+        try {
+            return new String(reader.getPageContent(page), "ISO-8859-1");
+        } finally {
+            reader.close();
+        }
+    }
+
+}
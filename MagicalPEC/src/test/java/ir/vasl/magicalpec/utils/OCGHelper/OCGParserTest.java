@@ -0,0 +1,192 @@
+package ir.vasl.magicalpec.utils.OCGHelper;
+
+import com.lowagie.text.DocWriter;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfStream;
+import com.lowagie.text.pdf.PdfString;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Locale;
+
+import ir.vasl.magicalpec.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Rewrites content streams with resources where /Pr1 and /Im1 belong to the removed layer and
+ * /Pr2 and /Im2 to a kept one.
+ */
+public class OCGParserTest {
+
+    private OCGParser parser;
+
+    @Before
+    public void prepare() {
+        PdfDictionary properties = new PdfDictionary();
+        properties.put(new PdfName("Pr1"), ocg("drop"));
+        properties.put(new PdfName("Pr2"), ocg("keep"));
+        PdfDictionary xobjects = new PdfDictionary();
+        xobjects.put(new PdfName("Im1"), xobject("drop"));
+        xobjects.put(new PdfName("Im2"), xobject("keep"));
+        PdfDictionary resources = new PdfDictionary();
+        resources.put(PdfName.PROPERTIES, properties);
+        resources.put(PdfName.XOBJECT, xobjects);
+
+        parser = new OCGParser(Collections.singleton("drop"));
+        parser.prepare(resources);
+    }
+
+    @Test
+    public void removesMarkedContentSection() throws Exception {
+        assertEquals("q\nQ\n", rewrite("q\n/OC /Pr1 BDC\n0 0 m\n10 10 l\nS\nEMC\nQ\n"));
+    }
+
+    @Test
+    public void keepsMarkedContentOfOtherLayers() throws Exception {
+        String content = "/OC /Pr2 BDC\n0 0 m\n10 10 l\nS\nEMC\n";
+        assertEquals(content, rewrite(content));
+    }
+
+    @Test
+    public void removesNestedMarkedContentWithItsSection() throws Exception {
+        assertEquals("\n0 0 1 RG\n", rewrite("/OC /Pr1 BDC\n/Span BMC\n1 1 m\nEMC\n2 2 l\nEMC\n0 0 1 RG\n"));
+    }
+
+    @Test
+    public void keepsMarkedContentAroundARemovedSection() throws Exception {
+        assertEquals("/Span BMC\n2 2 l\nEMC\n", rewrite("/Span BMC\n/OC /Pr1 BDC\n1 1 m\nEMC\n2 2 l\nEMC\n"));
+    }
+
+    @Test
+    public void removesDrawingOfRemovedXObject() throws Exception {
+        assertEquals("q 1 0 0 1 5 5 cm Q /Im2 Do\n", rewrite("q 1 0 0 1 5 5 cm /Im1 Do Q /Im2 Do\n"));
+    }
+
+    @Test
+    public void removesSectionSpanningTwoStreams() throws Exception {
+        assertEquals("0 g\n", rewrite("0 g\n/OC /Pr1 BDC\n0 0 m\n"));
+        // the second stream doesn't name the layer, it is still inside the section
+        assertEquals("\n1 0 0 RG\n", rewrite("10 10 l\nS\nEMC\n1 0 0 RG\n"));
+        String after = "0 0 m\n5 5 l\nS\n";
+        assertEquals(after, rewrite(after));
+    }
+
+    @Test
+    public void returnsUntouchedStreamItself() throws Exception {
+        byte[] unrelated = DocWriter.getISOBytes("q 0 0 m 1 1 l S Q /Im2 Do\n");
+        assertSame(unrelated, parser.rewrite(unrelated));
+        // mentions a removed name only as part of a longer name, so it is not tokenised
+        byte[] prefixed = DocWriter.getISOBytes("/OC /Pr10 BDC 0 0 m EMC\n");
+        assertSame(prefixed, parser.rewrite(prefixed));
+        // tokenised for /Pr1 in a string, nothing is removed
+        byte[] mentioned = DocWriter.getISOBytes("BT (/Pr1 ) Tj ET\n");
+        assertSame(mentioned, parser.rewrite(mentioned));
+    }
+
+    @Test
+    public void findsWholeTokensOnly() {
+        byte[] data = DocWriter.getISOBytes("/Pr10 /Pr1/Pr2");
+        assertEquals(6, OCGParser.indexOf(data, DocWriter.getISOBytes("/Pr1")));
+        assertEquals(10, OCGParser.indexOf(data, DocWriter.getISOBytes("/Pr2")));
+        assertEquals(-1, OCGParser.indexOf(data, DocWriter.getISOBytes("/Pr3")));
+    }
+
+    @Test
+    public void dispatchAllocatesNothing() {
+        assumeTrue("the VM can't count allocated bytes", allocatedBytes() >= 0);
+        byte[][] operators = {
+                bytes("m"), bytes("re"), bytes("f*"), bytes("q"), bytes("Q"), bytes("cm"), bytes("gs"),
+                bytes("BT"), bytes("Tf"), bytes("Td"), bytes("Tj"), bytes("TJ"), bytes("ET"),
+                bytes("Do"), bytes("BDC"), bytes("BMC"), bytes("EMC"), bytes("unknown")};
+        int lookups = 100000;
+        for (int i = 0; i < lookups; i++)
+            OCGParser.lookup(operators[i % operators.length]);
+
+        long before = allocatedBytes();
+        for (int i = 0; i < lookups; i++)
+            OCGParser.lookup(operators[i % operators.length]);
+        long allocated = allocatedBytes() - before;
+
+        // the counter itself may allocate a little, a String or a boxed key per lookup is far more
+        assertTrue(allocated + " bytes for " + lookups + " lookups", allocated < lookups);
+    }
+
+    /**
+     * Rewrites a text heavy stream with a removed section, as a page of a scanned book with a
+     * stamp, and reports the time and allocation per operator.
+     */
+    @Test
+    public void benchmarkRewrite() throws Exception {
+        Benchmark.assumeEnabled();
+        StringBuilder content = new StringBuilder("/OC /Pr1 BDC\nq 35 0 0 35 100 100 cm /Im1 Do Q\nEMC\n");
+        int lines = 20000;
+        for (int i = 0; i < lines; i++) {
+            content.append("BT\n/F1 10 Tf\n72 ").append(700 - i % 60 * 11).append(" Td\n")
+                    .append("[(Line ").append(i).append(" of the page) -250 (text)] TJ\nET\n");
+        }
+        byte[] stream = DocWriter.getISOBytes(content.toString());
+        int operators = 1 + 4 + lines * 5;
+
+        for (int i = 0; i < 5; i++)
+            parse().rewrite(stream);
+        int rounds = 20;
+        long allocated = allocatedBytes();
+        long started = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            parse().rewrite(stream);
+        long nanos = (System.nanoTime() - started) / rounds;
+        allocated = (allocatedBytes() - allocated) / rounds;
+
+        Benchmark.report("OCGParser.rewrite, " + operators + " operators", nanos);
+        System.out.println(String.format(Locale.US, "%.1f ns and %.1f bytes per operator",
+                (double) nanos / operators, (double) allocated / operators));
+    }
+
+    /**
+     * @return a parser prepared like the one of the tests, for a new stream
+     */
+    private OCGParser parse() {
+        prepare();
+        return parser;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the VM can't tell
+     */
+    private static long allocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] bytes(String operator) {
+        return DocWriter.getISOBytes(operator);
+    }
+
+    private String rewrite(String content) throws Exception {
+        return new String(parser.rewrite(DocWriter.getISOBytes(content)), "ISO-8859-1");
+    }
+
+    private static PdfDictionary ocg(String name) {
+        PdfDictionary ocg = new PdfDictionary(PdfName.OCG);
+        ocg.put(PdfName.NAME, new PdfString(name));
+        return ocg;
+    }
+
+    private static PdfStream xobject(String layer) {
+        PdfStream xobject = new PdfStream(new byte[0]);
+        xobject.put(PdfName.SUBTYPE, PdfName.IMAGE);
+        xobject.put(PdfName.OC, ocg(layer));
+        return xobject;
+    }
+
+}
@@ -0,0 +1,208 @@
+package ir.vasl.magicalpec.utils.OCGHelper;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfLayer;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfTemplate;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ir.vasl.magicalpec.utils.Tracing.MemoryTracer;
+import ir.vasl.magicalpec.utils.Tracing.TraceSpan;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Removes layers from several documents at the same time, with sequential and parallel removers,
+ * and checks every result byte for byte against a removal run alone on one thread.
+ */
+public class OCGRemoverConcurrencyTest {
+
+    private static final int DOCUMENTS = 8;
+    private static final int ROUNDS = 5;
+    private static final String[] REMOVED = {"drop-a", "drop-b"};
+
+    private static ExecutorService removalExecutor;
+
+    @BeforeClass
+    public static void startExecutor() {
+        removalExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterClass
+    public static void stopExecutor() {
+        removalExecutor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentRemovalsMatchSequentialOutput() throws Exception {
+        final List<byte[]> documents = new ArrayList<>();
+        final List<List<byte[]>> expected = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(createDocument(i));
+            expected.add(removeLayers(documents.get(i), new OCGRemover()));
+        }
+
+        ExecutorService callers = Executors.newFixedThreadPool(DOCUMENTS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> runs = new ArrayList<>();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < DOCUMENTS; i++) {
+                    final int document = i;
+                    final boolean parallel = (round + i) % 2 == 0;
+                    runs.add(callers.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            start.await();
+                            OCGRemover remover = parallel ? new OCGRemover(removalExecutor) : new OCGRemover();
+                            List<byte[]> streams = removeLayers(documents.get(document), remover);
+                            List<byte[]> reference = expected.get(document);
+                            assertEquals("stream count of document " + document, reference.size(), streams.size());
+                            for (int s = 0; s < streams.size(); s++)
+                                assertArrayEquals("stream " + s + " of document " + document, reference.get(s), streams.get(s));
+                            return null;
+                        }
+                    }));
+                }
+            }
+            start.countDown();
+            for (Future<?> run : runs)
+                run.get();
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void removedLayersAreGoneFromTheContent() throws Exception {
+        List<byte[]> streams = removeLayers(createDocument(0), new OCGRemover(removalExecutor));
+        int kept = 0;
+        for (byte[] stream : streams) {
+            String content = new String(stream, "ISO-8859-1");
+            assertFalse(content, content.contains("40 40 re"));
+            assertFalse(content, content.contains("50 50 re"));
+            if (content.contains("30 30 re"))
+                kept++;
+        }
+        assertEquals("pages still drawing the kept layer", 5, kept);
+    }
+
+    @Test
+    public void contentStreamSharedByPagesIsRewrittenOnce() throws Exception {
+        byte[] document = createDocument(0);
+        List<byte[]> expected = removeLayers(document, new OCGRemover(), true);
+
+        MemoryTracer tracer = new MemoryTracer();
+        TraceSpan.setTracer(tracer);
+        List<byte[]> streams;
+        try {
+            streams = removeLayers(document, new OCGRemover(removalExecutor), true);
+        } finally {
+            TraceSpan.setTracer(null);
+        }
+
+        int rewrites = 0;
+        for (MemoryTracer.Span span : tracer.getSpans())
+            if (span.name.equals("OCGParser.parse"))
+                rewrites++;
+        assertEquals(1, rewrites);
+        assertEquals(expected.size(), streams.size());
+        for (int s = 0; s < streams.size(); s++)
+            assertArrayEquals("stream " + s, expected.get(s), streams.get(s));
+        for (byte[] stream : streams)
+            assertFalse(new String(stream, "ISO-8859-1").contains("40 40 re"));
+    }
+
+    /**
+     * Removes the layers and returns every stream left in the document, in object number order,
+     * as stored (decoded, so the test doesn't depend on the deflater).
+     */
+    private static List<byte[]> removeLayers(byte[] document, OCGRemover remover) throws Exception {
+        return removeLayers(document, remover, false);
+    }
+
+    /**
+     * @param shared true to point the /Contents of every page at the content stream of the first page
+     */
+    private static List<byte[]> removeLayers(byte[] document, OCGRemover remover, boolean shared) throws Exception {
+        PdfReader reader = new PdfReader(document);
+        try {
+            if (shared) {
+                PdfObject contents = reader.getPageN(1).get(PdfName.CONTENTS);
+                for (int page = 2; page <= reader.getNumberOfPages(); page++)
+                    reader.getPageN(page).put(PdfName.CONTENTS, contents);
+            }
+            remover.removeLayers(reader, REMOVED);
+            List<byte[]> streams = new ArrayList<>();
+            for (int i = 1; i < reader.getXrefSize(); i++) {
+                PdfObject object = reader.getPdfObject(i);
+                if (object instanceof PRStream)
+                    streams.add(PdfReader.getStreamBytes((PRStream) object));
+            }
+            return streams;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A document whose pages draw a kept layer, two removed layers, one of them through a form
+     * XObject shared by all pages, and content outside of any layer.
+     */
+    private static byte[] createDocument(int seed) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter writer = PdfWriter.getInstance(document, out);
+        document.open();
+        PdfLayer keep = new PdfLayer("keep", writer);
+        PdfLayer dropA = new PdfLayer("drop-a", writer);
+        PdfLayer dropB = new PdfLayer("drop-b", writer);
+
+        PdfTemplate form = writer.getDirectContent().createTemplate(50, 50);
+        form.setLayer(dropB);
+        form.setGrayFill(0.75f);
+        form.rectangle(0, 0, 50, 50);
+        form.fill();
+
+        int pages = 5 + seed;
+        for (int page = 0; page < pages; page++) {
+            document.newPage();
+            PdfContentByte cb = writer.getDirectContent();
+            cb.rectangle(10 + seed, 10 + page, 20, 20);
+            cb.stroke();
+            cb.beginLayer(keep);
+            cb.setGrayFill(0.5f);
+            cb.rectangle(100, 100 + seed, 30, 30);
+            cb.fill();
+            cb.beginLayer(dropA);
+            cb.setGrayFill(0.25f);
+            cb.rectangle(200 + page, 200, 40, 40);
+            cb.fill();
+            cb.endLayer();
+            cb.endLayer();
+            cb.addTemplate(form, 300, 300 + seed);
+        }
+        document.close();
+        return out.toByteArray();
+    }
+
+}
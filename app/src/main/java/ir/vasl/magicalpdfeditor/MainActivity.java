@@ -131,7 +131,7 @@ public class MainActivity
                 break;
 
             case R.id.deleteAllAnnots:
-                Toast.makeText(this, "You clicked delete all annotations", Toast.LENGTH_SHORT).show();
+                deleteAllAnnotations();
                 break;
         }
         return true;
@@ -276,7 +276,15 @@ public class MainActivity
     }
 
     private void deleteAnnotation(String referenceHash) {
-        magicalPECViewModel.removeOCG(currFilePath, referenceHash);
+        magicalPECViewModel.removeOCG(currUri, referenceHash);
+    }
+
+    private void deleteAllAnnotations() {
+        if (currUri == null) {
+            Toast.makeText(this, "Please choose a file first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        magicalPECViewModel.removeAllOCGs(currUri);
     }
 
     private void updateAnnotation(String referenceHash, LinkTapEvent event) {
@@ -285,7 +293,7 @@ public class MainActivity
         byte[] newOCGCover = PublicFunction.getByteFromDrawable(MainActivity.this, R.drawable.ic_logo_v8);
 
         magicalPECViewModel.updateOCG(pointF,
-                currFilePath,
+                currUri,
                 magicalPdfViewer.getCurrentPage(),
                 referenceHash,
                 newOCGCover);